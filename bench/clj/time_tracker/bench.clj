@@ -0,0 +1,197 @@
+(ns time-tracker.bench
+  "Benchmark harness for the time-recording write path. Drives
+  `record-time!`, `mark-time-idle!` and `ensure-task!` against the database
+  named by DATABASE_URL and writes the results as JSON so runs can be
+  compared. Run with `lein bench [--option value ...]`."
+  (:require [com.stuartsierra.component :as component]
+            [clojure.java.io :as io]
+            [clojure.java.jdbc :as j]
+            [clojure.data.json :as json]
+            [clojure.string :as string]
+            [clojure.tools.logging :as log]
+            [clj-time.core :as t]
+            [clj-time.format :as f]
+            [time-tracker.db-env :refer [db-from-env]]
+            [time-tracker.migrator :as migrator]
+            [time-tracker.postgresql :as postgresql]
+            [time-tracker.sql.activity :as sql.activity]
+            [time-tracker.sql.project :as sql.project]
+            [time-tracker.sql.user :as sql.user]
+            [time-tracker.task-cache :as task-cache]
+            [time-tracker.time-data :as data])
+  (:import [java.util.concurrent Executors TimeUnit]))
+
+(def default-options
+  {:users 5
+   :tasks 20
+   :history-days 30
+   :entries-per-day 8
+   :iterations 500
+   :threads 4
+   :warmup 50
+   :scenarios "record-time,mark-time-idle,ensure-task"
+   :out nil})
+
+(defn parse-options [args]
+  (reduce
+   (fn [options [k v]]
+     (let [k (keyword (string/replace k #"^--" ""))]
+       (when-not (contains? default-options k)
+         (throw (ex-info "Unknown benchmark option" {:option k :known (keys default-options)})))
+       (assoc options k (if (number? (default-options k)) (Integer/parseInt v) v))))
+   default-options
+   (partition 2 args)))
+
+(defn bench-system []
+  (component/system-map
+   :db (postgresql/postgresql (db-from-env))
+   :migrator (component/using (migrator/instance) [:db])
+   :task-cache (task-cache/instance)))
+
+(defn- ensure-user! [conn name]
+  (:id (or (first (sql.user/exists {:name name} {:connection conn}))
+           (sql.user/create<! {:name name} {:connection conn}))))
+
+(defn- day-start [days-ago]
+  (t/minus (t/today-at 0 0) (t/days days-ago)))
+
+(defn seed!
+  "Creates the benchmark users and tasks, and gives every user
+  `history-days` of fully booked history so conflict resolution has rows to
+  work against. Returns the fixtures the scenarios draw from."
+  [{:keys [conn] :as db} task-cache {:keys [users tasks history-days entries-per-day]}]
+  (let [projects (->> (sql.project/list-entities {} {:connection conn}) (filter :active) (map :id) vec)
+        activities (->> (sql.activity/list-entities {} {:connection conn}) (filter :active) (map :id) vec)
+        user-ids (mapv #(ensure-user! conn (format "bench-user-%d" %)) (range users))
+        task-ids (vec (for [i (range tasks)]
+                        (data/ensure-task! db task-cache
+                                           {:project_id (nth projects (mod i (count projects)))
+                                            :activity_id (nth activities (mod i (count activities)))
+                                            :bug (str i)
+                                            :description (format "bench task %d" i)})))
+        slot (t/minutes (quot (* 24 60) entries-per-day))]
+    (log/info ::seeding {:users users :tasks tasks :history-days history-days})
+    (doseq [user user-ids
+            day (range history-days)
+            entry (range entries-per-day)
+            :let [start (t/plus (day-start day) (t/minutes (* entry (.getMinutes slot))))]]
+      (data/record-time! db (rand-nth task-ids) user start (t/plus start slot)))
+    {:projects projects
+     :activities activities
+     :users user-ids
+     :task-ids task-ids
+     :task-cache task-cache}))
+
+(defn- random-interval
+  "A random interval of 15 minutes to 4 hours inside the seeded history, so
+  that it usually trims, splits or swallows existing entries."
+  [{:keys [history-days]}]
+  (let [start (t/plus (day-start (rand-int history-days))
+                      (t/minutes (* 15 (rand-int (* 4 24)))))]
+    [start (t/plus start (t/minutes (* 15 (inc (rand-int 16)))))]))
+
+(def scenarios
+  {"record-time"
+   (fn [db fixtures options]
+     (let [[start end] (random-interval options)]
+       (data/record-time! db (rand-nth (:task-ids fixtures)) (rand-nth (:users fixtures)) start end)))
+
+   "mark-time-idle"
+   (fn [db fixtures options]
+     (let [[start end] (random-interval options)]
+       (data/mark-time-idle! db (rand-nth (:users fixtures)) start end)))
+
+   "ensure-task"
+   ;; Mostly re-uses existing tasks, with the occasional new one as happens
+   ;; when someone types a fresh description.
+   (fn [db {:keys [projects activities task-cache]} {:keys [tasks]}]
+     (data/ensure-task! db task-cache
+                        {:project_id (rand-nth projects)
+                         :activity_id (rand-nth activities)
+                         :bug (str (rand-int (* 2 tasks)))
+                         :description (format "bench task %d" (rand-int (* 2 tasks)))}))})
+
+(defn- percentile [sorted p]
+  (when (seq sorted)
+    (nth sorted (min (dec (count sorted))
+                     (int (Math/floor (* p (count sorted))))))))
+
+(defn- nanos->millis [n]
+  (when n
+    (/ n 1e6)))
+
+(defn summarise [latencies wall-nanos]
+  (let [sorted (vec (sort latencies))
+        n (count sorted)]
+    {:operations n
+     :throughput-per-sec (if (pos? wall-nanos) (/ n (/ wall-nanos 1e9)) 0)
+     :mean-ms (when (pos? n) (nanos->millis (/ (reduce + sorted) n)))
+     :p50-ms (nanos->millis (percentile sorted 0.50))
+     :p90-ms (nanos->millis (percentile sorted 0.90))
+     :p99-ms (nanos->millis (percentile sorted 0.99))
+     :max-ms (nanos->millis (peek sorted))}))
+
+(defn- timed-call [f]
+  (let [start (System/nanoTime)]
+    (f)
+    (- (System/nanoTime) start)))
+
+(defn run-scenario
+  "Runs `iterations` calls of the named scenario spread over `threads`
+  workers after `warmup` untimed calls."
+  [db fixtures {:keys [iterations threads warmup] :as options} scenario-name]
+  (let [scenario (or (scenarios scenario-name)
+                     (throw (ex-info "Unknown scenario" {:scenario scenario-name :known (keys scenarios)})))
+        op #(scenario db fixtures options)
+        pool (Executors/newFixedThreadPool threads)
+        errors (atom 0)]
+    (dotimes [_ warmup] (op))
+    (try
+      (let [started (System/nanoTime)
+            futures (doall
+                     (for [worker (range threads)]
+                       (.submit pool ^Callable
+                                (fn []
+                                  (doall
+                                   (for [_ (range worker iterations threads)]
+                                     (try
+                                       (timed-call op)
+                                       (catch Exception e
+                                         (log/warn e ::operation-failed scenario-name)
+                                         (swap! errors inc)
+                                         nil))))))))
+            latencies (->> futures (mapcat #(.get %)) (remove nil?))
+            wall (- (System/nanoTime) started)]
+        (assoc (summarise latencies wall)
+               :scenario scenario-name
+               :errors @errors))
+      (finally
+        (.shutdown pool)
+        (.awaitTermination pool 1 TimeUnit/MINUTES)))))
+
+(defn results-file [{:keys [out]}]
+  (io/file (or out
+               (format "target/bench/write-path-%s.json"
+                       (f/unparse (f/formatters :basic-date-time-no-ms) (t/now))))))
+
+(defn -main [& args]
+  (let [options (parse-options args)
+        system (component/start (bench-system))]
+    (try
+      (let [db (:db system)
+            fixtures (seed! db (:task-cache system) options)
+            results (mapv (partial run-scenario db fixtures options)
+                          (string/split (:scenarios options) #","))
+            out (results-file options)]
+        (doseq [{:keys [scenario operations errors throughput-per-sec p50-ms p99-ms]} results]
+          (println (format "%-16s %6d ops %4d errors %9.1f ops/s  p50 %8.2f ms  p99 %8.2f ms"
+                           scenario operations errors (double throughput-per-sec)
+                           (double (or p50-ms 0)) (double (or p99-ms 0)))))
+        (io/make-parents out)
+        (spit out (json/write-str {:options (dissoc options :out)
+                                   :started-at (str (t/now))
+                                   :results results}))
+        (println "Results written to" (str out)))
+      (finally
+        (component/stop system)
+        (shutdown-agents)))))
@@ -0,0 +1,45 @@
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
+ALTER TABLE task_time
+	ADD COLUMN period tstzrange;
+
+CREATE FUNCTION task_time_set_period() RETURNS trigger AS $$
+BEGIN
+	NEW.period := tstzrange(NEW.start_time, NEW.end_time, '[)');
+	RETURN NEW;
+END$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER task_time_period
+	BEFORE INSERT OR UPDATE OF start_time, end_time ON task_time
+	FOR EACH ROW EXECUTE PROCEDURE task_time_set_period();
+
+UPDATE task_time SET period = tstzrange(start_time, end_time, '[)');
+
+ALTER TABLE task_time
+	ALTER COLUMN period SET NOT NULL;
+
+-- The exclusion constraint's index doubles as the (user_id, period) index the
+-- overlap queries use. It is deferred so that conflict resolution may move
+-- entries around within a transaction. Older databases may hold overlapping
+-- entries from before the application removed conflicts; those get the plain
+-- index until they are tidied up and this constraint is added by hand.
+DO $$
+BEGIN
+	IF EXISTS (
+		SELECT 1
+		FROM (SELECT start_time, end_time,
+				max(end_time) OVER (PARTITION BY user_id ORDER BY start_time, id
+					ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING) AS previous_end
+			FROM task_time) AS ordered
+		WHERE start_time < previous_end
+			AND start_time < end_time
+	) THEN
+		RAISE NOTICE 'task_time has overlapping entries, not adding task_time_no_overlap';
+		CREATE INDEX task_time_user_period_ix ON task_time USING gist (user_id, period);
+	ELSE
+		ALTER TABLE task_time
+			ADD CONSTRAINT task_time_no_overlap
+			EXCLUDE USING gist (user_id WITH =, period WITH &&)
+			DEFERRABLE INITIALLY DEFERRED;
+	END IF;
+END$$;
@@ -0,0 +1,28 @@
+-- Tasks were interned by looking them up and inserting when missing, with
+-- nothing stopping two concurrent saves from both inserting. Fold any such
+-- duplicates into the lowest id before making the details unique.
+UPDATE tasks SET bug = '' WHERE bug IS NULL;
+UPDATE tasks SET description = '' WHERE description IS NULL;
+
+ALTER TABLE tasks
+	ALTER COLUMN bug SET DEFAULT '',
+	ALTER COLUMN bug SET NOT NULL,
+	ALTER COLUMN description SET NOT NULL;
+
+CREATE TEMPORARY TABLE task_duplicates ON COMMIT DROP AS
+	SELECT id, min(id) OVER (PARTITION BY project_id, activity_id, bug, description) AS keep_id
+	FROM tasks;
+
+DELETE FROM task_duplicates WHERE id = keep_id;
+
+UPDATE task_time tt
+	SET task_id = d.keep_id
+	FROM task_duplicates d
+	WHERE tt.task_id = d.id;
+
+DELETE FROM tasks t
+	USING task_duplicates d
+	WHERE t.id = d.id;
+
+CREATE UNIQUE INDEX tasks_details_key
+	ON tasks (project_id, activity_id, bug, description);
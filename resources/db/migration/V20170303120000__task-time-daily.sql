@@ -0,0 +1,65 @@
+-- Minutes booked per user, task and day, kept up to date by a trigger on
+-- task_time so that the reports and graphs needn't sum every entry they
+-- cover. An entry counts towards the day it starts on, as the reports have
+-- always done. Minutes are numeric so that adding and removing entries
+-- never leaves rounding residue behind; entries counts the rows behind each
+-- total so that emptied days can be dropped.
+CREATE TABLE task_time_daily (
+	user_id integer NOT NULL REFERENCES users (id),
+	task_id integer NOT NULL REFERENCES tasks (id),
+	day date NOT NULL,
+	minutes numeric NOT NULL,
+	entries integer NOT NULL,
+	PRIMARY KEY (user_id, day, task_id)
+);
+
+CREATE INDEX task_time_daily_day_ix ON task_time_daily (day);
+
+CREATE FUNCTION task_time_daily_add(p_user_id integer, p_task_id integer, p_day date,
+		p_minutes numeric, p_entries integer) RETURNS void AS $$
+BEGIN
+	INSERT INTO task_time_daily AS d (user_id, task_id, day, minutes, entries)
+		VALUES (p_user_id, p_task_id, p_day, p_minutes, p_entries)
+		ON CONFLICT (user_id, day, task_id) DO UPDATE
+			SET minutes = d.minutes + EXCLUDED.minutes,
+				entries = d.entries + EXCLUDED.entries;
+	DELETE FROM task_time_daily
+		WHERE user_id = p_user_id AND day = p_day AND task_id = p_task_id
+			AND entries = 0;
+END$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION task_time_daily_maintain() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM task_time_daily_add(OLD.user_id, OLD.task_id, OLD.start_time :: date,
+			-(date_part('epoch', OLD.end_time - OLD.start_time) :: numeric / 60), -1);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM task_time_daily_add(NEW.user_id, NEW.task_id, NEW.start_time :: date,
+			date_part('epoch', NEW.end_time - NEW.start_time) :: numeric / 60, 1);
+	END IF;
+	RETURN NULL;
+END$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER task_time_daily_maintain
+	AFTER INSERT OR DELETE OR UPDATE OF user_id, task_id, start_time, end_time ON task_time
+	FOR EACH ROW EXECUTE PROCEDURE task_time_daily_maintain();
+
+-- Recomputes the whole table from task_time, holding off writers while it
+-- does. Used for the backfill below and by `lein rollup rebuild`.
+CREATE FUNCTION task_time_daily_rebuild() RETURNS integer AS $$
+DECLARE
+	n integer;
+BEGIN
+	LOCK TABLE task_time IN SHARE MODE;
+	DELETE FROM task_time_daily;
+	INSERT INTO task_time_daily (user_id, task_id, day, minutes, entries)
+		SELECT user_id, task_id, start_time :: date,
+			sum(date_part('epoch', end_time - start_time) :: numeric / 60), count(*)
+		FROM task_time
+		GROUP BY user_id, task_id, start_time :: date;
+	GET DIAGNOSTICS n = ROW_COUNT;
+	RETURN n;
+END$$ LANGUAGE plpgsql;
+
+SELECT task_time_daily_rebuild();
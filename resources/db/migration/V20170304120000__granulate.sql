@@ -0,0 +1,23 @@
+-- Rounds minutes to a multiple of granularity as Timezilla reports them,
+-- mirroring time-tracker.timezilla-data/granulator: anything under the
+-- granularity counts as one unit, PROPER rounds to the nearest unit (halves
+-- going up) and UP rounds any part of a unit up.
+CREATE FUNCTION granulate(minutes numeric, granularity integer, kind text) RETURNS numeric AS $$
+DECLARE
+	remainder numeric;
+	low numeric;
+BEGIN
+	IF granularity = 0 THEN
+		RETURN minutes;
+	ELSIF minutes < granularity THEN
+		RETURN granularity;
+	END IF;
+	remainder := mod(minutes, granularity);
+	low := minutes - remainder;
+	IF kind = 'PROPER' THEN
+		RETURN CASE WHEN remainder * 2 < granularity THEN low ELSE low + granularity END;
+	ELSIF kind = 'UP' THEN
+		RETURN CASE WHEN remainder = 0 THEN low ELSE low + granularity END;
+	END IF;
+	RAISE EXCEPTION 'Unknown rounding kind %', kind;
+END$$ LANGUAGE plpgsql IMMUTABLE;
@@ -0,0 +1,5 @@
+-- BY_TIME reports page through entries in (start_time, id) order; this
+-- replaces the plain start_time index with one that serves that ordering.
+CREATE INDEX task_time_start_id_ix ON task_time (start_time, id);
+
+DROP INDEX idx_sttime;
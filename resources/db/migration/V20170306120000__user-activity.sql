@@ -0,0 +1,53 @@
+-- Each user's latest entry and a version that moves on every change to
+-- their time, kept by a trigger on task_time so that the forgotten
+-- timesheets report needn't read anyone's whole history. Hours worked come
+-- from task_time_daily.
+CREATE TABLE user_activity (
+	user_id integer PRIMARY KEY REFERENCES users (id),
+	last_entry timestamp with time zone,
+	version bigint NOT NULL DEFAULT 0
+);
+
+CREATE INDEX task_time_user_end_ix ON task_time (user_id, end_time);
+
+CREATE FUNCTION user_activity_touch(p_user_id integer, p_end_time timestamp with time zone,
+		p_removed_end_time timestamp with time zone) RETURNS void AS $$
+BEGIN
+	INSERT INTO user_activity AS a (user_id, last_entry, version)
+		VALUES (p_user_id, p_end_time, 1)
+		ON CONFLICT (user_id) DO UPDATE
+			SET last_entry = greatest(a.last_entry, EXCLUDED.last_entry),
+				version = a.version + 1;
+	-- Removing the latest entry means looking for the one before it.
+	IF p_removed_end_time IS NOT NULL THEN
+		UPDATE user_activity
+			SET last_entry = (SELECT max(end_time) FROM task_time WHERE user_id = p_user_id)
+			WHERE user_id = p_user_id
+				AND last_entry <= p_removed_end_time;
+	END IF;
+END$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION user_activity_maintain() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		PERFORM user_activity_touch(NEW.user_id, NEW.end_time, NULL);
+	ELSIF TG_OP = 'DELETE' THEN
+		PERFORM user_activity_touch(OLD.user_id, NULL, OLD.end_time);
+	ELSIF OLD.user_id = NEW.user_id THEN
+		PERFORM user_activity_touch(NEW.user_id, NEW.end_time,
+			CASE WHEN NEW.end_time < OLD.end_time THEN OLD.end_time END);
+	ELSE
+		PERFORM user_activity_touch(OLD.user_id, NULL, OLD.end_time);
+		PERFORM user_activity_touch(NEW.user_id, NEW.end_time, NULL);
+	END IF;
+	RETURN NULL;
+END$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER user_activity_maintain
+	AFTER INSERT OR DELETE OR UPDATE OF user_id, task_id, start_time, end_time ON task_time
+	FOR EACH ROW EXECUTE PROCEDURE user_activity_maintain();
+
+INSERT INTO user_activity (user_id, last_entry, version)
+	SELECT user_id, max(end_time), 1
+	FROM task_time
+	GROUP BY user_id;
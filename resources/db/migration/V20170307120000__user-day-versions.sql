@@ -0,0 +1,38 @@
+-- A version per user and day, bumped by a trigger whenever any of that
+-- user's entries touching the day changes, so that GET /time can tell
+-- whether a client's copy of a time sheet is still current without
+-- listing it.
+CREATE TABLE user_day_versions (
+	user_id integer NOT NULL REFERENCES users (id),
+	day date NOT NULL,
+	version bigint NOT NULL,
+	changed_at timestamp with time zone NOT NULL,
+	PRIMARY KEY (user_id, day)
+);
+
+CREATE FUNCTION user_day_versions_bump(p_user_id integer, p_start timestamp with time zone,
+		p_end timestamp with time zone) RETURNS void AS $$
+BEGIN
+	INSERT INTO user_day_versions AS v (user_id, day, version, changed_at)
+		SELECT p_user_id, d :: date, 1, now()
+		FROM generate_series(p_start :: date, greatest(p_start, p_end - interval '1 microsecond') :: date,
+			interval '1 day') AS d
+		ON CONFLICT (user_id, day) DO UPDATE
+			SET version = v.version + 1,
+				changed_at = EXCLUDED.changed_at;
+END$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION user_day_versions_maintain() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM user_day_versions_bump(OLD.user_id, OLD.start_time, OLD.end_time);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM user_day_versions_bump(NEW.user_id, NEW.start_time, NEW.end_time);
+	END IF;
+	RETURN NULL;
+END$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER user_day_versions_maintain
+	AFTER INSERT OR DELETE OR UPDATE OF user_id, task_id, start_time, end_time ON task_time
+	FOR EACH ROW EXECUTE PROCEDURE user_day_versions_maintain();
@@ -0,0 +1,31 @@
+-- Announces every change to task_time on the task_time_changes channel, as
+-- the entries removed and added, so that open time sheets can follow along
+-- without fetching the day again. Notifications are only delivered once
+-- the change commits. The task's details go along with an added entry, as
+-- the time sheet may not have seen the task before.
+CREATE FUNCTION task_time_entry_json(p_op text, p_entry task_time) RETURNS text AS $$
+	SELECT json_build_object(
+		'op', p_op,
+		'user_id', p_entry.user_id,
+		'start_time', p_entry.start_time,
+		'end_time', p_entry.end_time,
+		'task', (SELECT json_build_object('id', t.id, 'project_id', t.project_id,
+				'activity_id', t.activity_id, 'bug', t.bug, 'description', t.description)
+			FROM tasks t
+			WHERE t.id = p_entry.task_id)) :: text
+$$ LANGUAGE sql STABLE;
+
+CREATE FUNCTION task_time_notify() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM pg_notify('task_time_changes', task_time_entry_json('removed', OLD));
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM pg_notify('task_time_changes', task_time_entry_json('added', NEW));
+	END IF;
+	RETURN NULL;
+END$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER task_time_notify
+	AFTER INSERT OR DELETE OR UPDATE OF user_id, task_id, start_time, end_time ON task_time
+	FOR EACH ROW EXECUTE PROCEDURE task_time_notify();
@@ -0,0 +1,34 @@
+-- Days in task_time_daily were cut in whatever TimeZone the writing
+-- session had, so the same entry could land on different days depending on
+-- which connection wrote or rebuilt it. Days are now cut in UTC, as the
+-- clients send their times. An entry that crosses midnight still counts
+-- wholly towards the day it starts on.
+CREATE OR REPLACE FUNCTION task_time_daily_maintain() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM task_time_daily_add(OLD.user_id, OLD.task_id, (OLD.start_time AT TIME ZONE 'UTC') :: date,
+			-(date_part('epoch', OLD.end_time - OLD.start_time) :: numeric / 60), -1);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM task_time_daily_add(NEW.user_id, NEW.task_id, (NEW.start_time AT TIME ZONE 'UTC') :: date,
+			date_part('epoch', NEW.end_time - NEW.start_time) :: numeric / 60, 1);
+	END IF;
+	RETURN NULL;
+END$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION task_time_daily_rebuild() RETURNS integer AS $$
+DECLARE
+	n integer;
+BEGIN
+	LOCK TABLE task_time IN SHARE MODE;
+	DELETE FROM task_time_daily;
+	INSERT INTO task_time_daily (user_id, task_id, day, minutes, entries)
+		SELECT user_id, task_id, (start_time AT TIME ZONE 'UTC') :: date,
+			sum(date_part('epoch', end_time - start_time) :: numeric / 60), count(*)
+		FROM task_time
+		GROUP BY user_id, task_id, (start_time AT TIME ZONE 'UTC') :: date;
+	GET DIAGNOSTICS n = ROW_COUNT;
+	RETURN n;
+END$$ LANGUAGE plpgsql;
+
+SELECT task_time_daily_rebuild();
@@ -0,0 +1,15 @@
+-- Cut the days in user_day_versions in UTC, like those in task_time_daily,
+-- rather than in the writing session's TimeZone. Versions only ever grow,
+-- so the rows written under the old cut can stay.
+CREATE OR REPLACE FUNCTION user_day_versions_bump(p_user_id integer, p_start timestamp with time zone,
+		p_end timestamp with time zone) RETURNS void AS $$
+BEGIN
+	INSERT INTO user_day_versions AS v (user_id, day, version, changed_at)
+		SELECT p_user_id, d :: date, 1, now()
+		FROM generate_series((p_start AT TIME ZONE 'UTC') :: date,
+			(greatest(p_start, p_end - interval '1 microsecond') AT TIME ZONE 'UTC') :: date,
+			interval '1 day') AS d
+		ON CONFLICT (user_id, day) DO UPDATE
+			SET version = v.version + 1,
+				changed_at = EXCLUDED.changed_at;
+END$$ LANGUAGE plpgsql;
@@ -0,0 +1,12 @@
+-- A notification's payload is limited to 8000 bytes, and pg_notify fails
+-- the write that raised it when it's longer, as it could be with a long
+-- task description. Entries are now announced by task id alone; time
+-- sheets that don't know the task fetch the day again.
+CREATE OR REPLACE FUNCTION task_time_entry_json(p_op text, p_entry task_time) RETURNS text AS $$
+	SELECT json_build_object(
+		'op', p_op,
+		'user_id', p_entry.user_id,
+		'task_id', p_entry.task_id,
+		'start_time', p_entry.start_time,
+		'end_time', p_entry.end_time) :: text
+$$ LANGUAGE sql STABLE;
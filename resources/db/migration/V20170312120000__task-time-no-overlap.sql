@@ -0,0 +1,29 @@
+-- Adds task_time_no_overlap where V20170301120000 had to leave it out
+-- because the table held overlapping entries, once they have been tidied
+-- up. Without btree_gist, or while overlaps remain, the constraint is left
+-- out again and the application alone keeps entries apart; the migrator
+-- warns about this at startup.
+DO $$
+BEGIN
+	IF EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'task_time_no_overlap') THEN
+		RETURN;
+	ELSIF NOT EXISTS (SELECT 1 FROM pg_extension WHERE extname = 'btree_gist') THEN
+		RAISE NOTICE 'btree_gist is not installed, not adding task_time_no_overlap';
+	ELSIF EXISTS (
+		SELECT 1
+		FROM (SELECT start_time, end_time,
+				max(end_time) OVER (PARTITION BY user_id ORDER BY start_time, id
+					ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING) AS previous_end
+			FROM task_time) AS ordered
+		WHERE start_time < previous_end
+			AND start_time < end_time
+	) THEN
+		RAISE NOTICE 'task_time has overlapping entries, not adding task_time_no_overlap';
+	ELSE
+		ALTER TABLE task_time
+			ADD CONSTRAINT task_time_no_overlap
+			EXCLUDE USING gist (user_id WITH =, period WITH &&)
+			DEFERRABLE INITIALLY DEFERRED;
+		DROP INDEX IF EXISTS task_time_user_period_ix;
+	END IF;
+END$$;
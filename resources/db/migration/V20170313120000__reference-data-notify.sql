@@ -0,0 +1,20 @@
+-- Announces every write to projects, activities and users on the
+-- reference_data_changes channel, with the table's name, so that each
+-- instance drops its copy of that list however the write was made.
+CREATE FUNCTION reference_data_notify() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('reference_data_changes', TG_TABLE_NAME);
+	RETURN NULL;
+END$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER projects_notify
+	AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON projects
+	FOR EACH STATEMENT EXECUTE PROCEDURE reference_data_notify();
+
+CREATE TRIGGER activities_notify
+	AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON activities
+	FOR EACH STATEMENT EXECUTE PROCEDURE reference_data_notify();
+
+CREATE TRIGGER users_notify
+	AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON users
+	FOR EACH STATEMENT EXECUTE PROCEDURE reference_data_notify();
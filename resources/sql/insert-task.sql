@@ -1 +0,0 @@
-INSERT INTO "tasks" ("project_id", "activity_id", "bug", "description") VALUES (:project_id, :activity_id, :bug, :description)
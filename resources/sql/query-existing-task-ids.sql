@@ -0,0 +1,3 @@
+SELECT id
+FROM tasks
+WHERE id IN (:ids)
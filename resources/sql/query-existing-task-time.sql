@@ -1,7 +1,6 @@
 SELECT tt.*
 FROM "task_time" tt
-	INNER JOIN users u ON u.id = tt.user_id
-WHERE start_time >= :start_time :: TIMESTAMP WITH TIME ZONE
-	AND end_time <= :end_time :: TIMESTAMP WITH TIME ZONE
-	AND u.name = :user_name
+WHERE tt.period <@ tstzrange(:start_time :: TIMESTAMP WITH TIME ZONE, :end_time :: TIMESTAMP WITH TIME ZONE, '[]')
+	AND tt.user_id = :user_id
+	AND NOT isempty(tt.period)
 ORDER BY "start_time"
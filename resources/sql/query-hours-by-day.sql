@@ -1,9 +1,9 @@
-SELECT start_time :: date :: text as day, u.name AS user_name,
-        SUM(date_part('epoch', tt.end_time - tt.start_time) :: float / 3600) AS hours
-FROM task_time tt
-        INNER JOIN users u ON u.id = tt.user_id
+SELECT d.day :: text as day, u.name AS user_name,
+        SUM(d.minutes) :: float / 60 AS hours
+FROM task_time_daily d
+        INNER JOIN users u ON u.id = d.user_id
 WHERE u.name = :user_name
-        AND tt.start_time >= :start_date :: date
-        AND tt.start_time < :end_date :: date
-GROUP BY start_time :: date, u.name
-ORDER BY start_time :: date, u.name
+        AND d.day >= :start_date :: date
+        AND d.day < :end_date :: date
+GROUP BY d.day, u.name
+ORDER BY d.day, u.name
@@ -1,13 +1,22 @@
-SELECT tt.id, p.name as project, p.tracker_url, u.name as user, a.name as activity, t.bug, t.description, tt.start_time, tt.end_time,  date_part('epoch', end_time - start_time) / 60 :: int as minutes
-FROM task_time tt
-  JOIN tasks t ON tt.task_id = t.id
-  LEFT JOIN users u on tt.user_id = u.id
-  LEFT JOIN projects p on t.project_id = p.id
-  LEFT JOIN activities a on t.activity_id = a.id
-WHERE (:has_userid is FALSE or u.id in (:userid))
-  AND (:has_projectid is FALSE or t.project_id in (:projectid))
-  AND (:has_activityid is FALSE or t.activity_id in (:activityid))
-  AND (:has_bugid is FALSE or t.bug in (:bugid))
-  AND start_time >= :week_start :: date
-  AND start_time < :week_end :: date
-LIMIT :limit
+SELECT r.*, r.minutes / 60 as hours,
+  round((r.minutes / :minutes_per_day) :: numeric, 2) :: float as days
+FROM (SELECT tt.id, p.name as project, p.tracker_url, u.name as user, a.name as activity, t.bug, t.description, tt.start_time, tt.end_time,
+    m.minutes :: float as raw_minutes,
+    granulate(m.minutes, :granularity :: integer, :rounding :: text) :: float as minutes
+  FROM task_time tt
+    CROSS JOIN LATERAL (SELECT date_part('epoch', tt.end_time - tt.start_time) :: numeric / 60 as minutes) m
+    JOIN tasks t ON tt.task_id = t.id
+    LEFT JOIN users u on tt.user_id = u.id
+    LEFT JOIN projects p on t.project_id = p.id
+    LEFT JOIN activities a on t.activity_id = a.id
+  WHERE tt.start_time >= :week_start :: date
+    AND tt.start_time < :week_end :: date
+    [userid] AND tt.user_id = ANY(:userid)
+    [projectid] AND t.project_id = ANY(:projectid)
+    [activityid] AND t.activity_id = ANY(:activityid)
+    [bugid] AND t.bug = ANY(:bugid)
+    [after] AND (tt.start_time, tt.id) > (:after_start :: timestamptz, :after_id :: integer)
+  ORDER BY tt.start_time, tt.id
+  [limit] LIMIT :limit
+  ) r
+ORDER BY r.start_time, r.id
@@ -1,17 +1,36 @@
-SELECT u.id, u.name as user,
-  SUM(date_part('epoch', tt.end_time - tt.start_time) / 60 :: int) as minutes,
-  STRING_AGG(DISTINCT p.name,', ') as project,
-  STRING_AGG(DISTINCT a.name,', ') as activity
-FROM task_time tt
-  JOIN tasks t ON tt.task_id = t.id
-  LEFT JOIN users u on tt.user_id = u.id
-  LEFT JOIN projects p on t.project_id = p.id
-  LEFT JOIN activities a on t.activity_id = a.id
-WHERE (:has_userid is FALSE or u.id in (:userid))
-  AND (:has_projectid is FALSE or t.project_id in (:projectid))
-  AND (:has_activityid is FALSE or t.activity_id in (:activityid))
-  AND (:has_bugid is FALSE or t.bug in (:bugid))
-  AND start_time >= :week_start :: date
-  AND start_time < :week_end :: date
-GROUP BY u.id
-LIMIT :limit
+SELECT r.*, r.minutes / 60 as hours,
+  round((r.minutes / :minutes_per_day) :: numeric, 2) :: float as days
+FROM (SELECT u.id, u.name as user,
+    SUM(e.minutes) :: float as raw_minutes,
+    [totals] granulate(SUM(e.minutes), :granularity :: integer, :rounding :: text) :: float as minutes,
+    [entries] SUM(e.rounded) :: float as minutes,
+    STRING_AGG(DISTINCT p.name,', ') as project,
+    STRING_AGG(DISTINCT a.name,', ') as activity
+  FROM (
+    [totals] SELECT d.user_id, d.task_id, d.minutes, NULL :: numeric as rounded
+    [totals] FROM task_time_daily d
+    [totals] WHERE d.day >= :week_start :: date
+    [totals]   AND d.day < :week_end :: date
+    [totals userid]   AND d.user_id = ANY(:userid)
+    [entries] SELECT tt.user_id, tt.task_id, m.minutes,
+    [entries]     granulate(m.minutes, :granularity :: integer, :rounding :: text) as rounded
+    [entries] FROM task_time tt
+    [entries]   CROSS JOIN LATERAL (SELECT date_part('epoch', tt.end_time - tt.start_time) :: numeric / 60 as minutes) m
+    [entries] WHERE tt.start_time >= :week_start :: date
+    [entries]   AND tt.start_time < :week_end :: date
+    [entries userid]   AND tt.user_id = ANY(:userid)
+    ) e
+    JOIN tasks t ON e.task_id = t.id
+    LEFT JOIN users u on e.user_id = u.id
+    LEFT JOIN projects p on t.project_id = p.id
+    LEFT JOIN activities a on t.activity_id = a.id
+  WHERE TRUE
+    [projectid] AND t.project_id = ANY(:projectid)
+    [activityid] AND t.activity_id = ANY(:activityid)
+    [bugid] AND t.bug = ANY(:bugid)
+    [after] AND e.user_id > :after_id :: integer
+  GROUP BY u.id
+  ORDER BY u.id
+  [limit] LIMIT :limit
+  ) r
+ORDER BY r.id
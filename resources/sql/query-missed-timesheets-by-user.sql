@@ -1,13 +1,12 @@
 with x as (
   select u.id, u.name,
-  date_part('epoch', sum(
-       case when (end_time >= date 'today' - interval '1 month') then (tt.end_time - tt.start_time)
-       else interval '0' /* mark people outside of date range as "no time" */
-  end)) / 3600 :: int as worked_hours,
-  max(tt.end_time) last_entry
-  from users u left join task_time tt on tt.user_id = u.id
-  where u.active
-  group by u.id, u.name)
+  coalesce((select sum(d.minutes)
+            from task_time_daily d
+            where d.user_id = u.id
+              and d.day >= date 'today' - interval '1 month'), 0) :: float / 60 as worked_hours,
+  a.last_entry
+  from users u left join user_activity a on a.user_id = u.id
+  where u.active)
 select name, last_entry,
   worked_hours::int / 8::int as days,
   worked_hours::int % 8::int as hours
@@ -0,0 +1,5 @@
+SELECT current_date :: text || '-' ||
+  md5(coalesce(string_agg(u.id || ',' || u.name || ',' || coalesce(a.version, 0), ';' ORDER BY u.id), '')) AS version
+FROM users u
+  LEFT JOIN user_activity a ON a.user_id = u.id
+WHERE u.active
@@ -0,0 +1,14 @@
+SELECT coalesce(d.user_id, e.user_id) AS user_id, coalesce(d.task_id, e.task_id) AS task_id,
+  coalesce(d.day, e.day) :: text AS day,
+  d.minutes :: float AS rollup_minutes, e.minutes :: float AS entry_minutes,
+  d.entries AS rollup_entries, e.entries AS entry_entries
+FROM task_time_daily d
+  FULL OUTER JOIN (SELECT user_id, task_id, (start_time AT TIME ZONE 'UTC') :: date AS day,
+      SUM(date_part('epoch', end_time - start_time) :: numeric / 60) AS minutes,
+      COUNT(*) :: integer AS entries
+    FROM task_time
+    GROUP BY user_id, task_id, (start_time AT TIME ZONE 'UTC') :: date) e
+  ON d.user_id = e.user_id AND d.task_id = e.task_id AND d.day = e.day
+WHERE d.minutes IS DISTINCT FROM e.minutes
+  OR d.entries IS DISTINCT FROM e.entries
+ORDER BY 3, 1, 2
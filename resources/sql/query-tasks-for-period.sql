@@ -0,0 +1,16 @@
+SELECT t.id, t.project_id, t.activity_id, t.bug, t.description,
+  tt.start_time, tt.end_time
+FROM "task_time" AS tt
+	INNER JOIN "tasks" AS t ON t.id = tt.task_id
+WHERE (tt.user_id = :user_id
+	AND tt.period <@ tstzrange(:start_time :: TIMESTAMP WITH TIME ZONE, :end_time :: TIMESTAMP WITH TIME ZONE, '[]')
+	AND NOT isempty(tt.period))
+UNION ALL
+SELECT DISTINCT t.id, t.project_id, t.activity_id, t.bug, t.description,
+  NULL :: TIMESTAMP WITH TIME ZONE, NULL :: TIMESTAMP WITH TIME ZONE
+FROM "task_time" AS tt
+	INNER JOIN "tasks" AS t ON t.id = tt.task_id
+WHERE (tt.user_id = :user_id
+	AND tt.period <@ tstzrange(:recent_start_time :: TIMESTAMP WITH TIME ZONE, :start_time :: TIMESTAMP WITH TIME ZONE, '[]')
+	AND NOT isempty(tt.period))
+ORDER BY "start_time" NULLS LAST
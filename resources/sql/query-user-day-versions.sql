@@ -0,0 +1,5 @@
+SELECT coalesce(sum(version), 0) AS version, count(*) AS days, max(changed_at) AS changed_at
+FROM user_day_versions
+WHERE user_id = :user_id
+  AND day >= (:start_time :: TIMESTAMP WITH TIME ZONE AT TIME ZONE 'UTC') :: date
+  AND day <= (:end_time :: TIMESTAMP WITH TIME ZONE AT TIME ZONE 'UTC') :: date
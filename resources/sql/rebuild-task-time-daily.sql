@@ -0,0 +1 @@
+SELECT task_time_daily_rebuild() AS rows
@@ -0,0 +1,36 @@
+WITH params AS (
+	SELECT :start_time :: TIMESTAMP WITH TIME ZONE AS start_time,
+		:end_time :: TIMESTAMP WITH TIME ZONE AS end_time,
+		tstzrange(:start_time :: TIMESTAMP WITH TIME ZONE, :end_time :: TIMESTAMP WITH TIME ZONE, '[)') AS period
+), conflicting AS (
+	SELECT tt.*
+	FROM "task_time" tt, params p
+	WHERE tt.period && p.period
+		AND tt.user_id = :user_id
+	FOR UPDATE OF tt
+), deleted AS (
+	DELETE FROM "task_time" tt
+	USING conflicting c, params p
+	WHERE tt.id = c.id
+		AND c.start_time >= p.start_time
+		AND c.end_time <= p.end_time
+	RETURNING tt.id
+), trimmed AS (
+	UPDATE "task_time" tt
+	SET "start_time" = CASE WHEN c.start_time < p.start_time THEN c.start_time ELSE p.end_time END,
+		"end_time" = CASE WHEN c.start_time < p.start_time THEN p.start_time ELSE c.end_time END
+	FROM conflicting c, params p
+	WHERE tt.id = c.id
+		AND (c.start_time < p.start_time OR c.end_time > p.end_time)
+	RETURNING tt.id
+), split AS (
+	INSERT INTO "task_time" ("task_id", "user_id", "start_time", "end_time")
+	SELECT c.task_id, c.user_id, p.end_time, c.end_time
+	FROM conflicting c, params p
+	WHERE c.start_time < p.start_time
+		AND c.end_time > p.end_time
+	RETURNING id
+)
+SELECT (SELECT count(*) FROM deleted) AS deleted,
+	(SELECT count(*) FROM trimmed) AS trimmed,
+	(SELECT count(*) FROM split) AS split
@@ -1,4 +0,0 @@
-UPDATE "task_time"
-SET "start_time" = :start_time :: TIMESTAMP WITH TIME ZONE,
-	"end_time" = :end_time :: TIMESTAMP WITH TIME ZONE
-WHERE ("id" = :task_id)
@@ -0,0 +1,4 @@
+INSERT INTO "tasks" ("project_id", "activity_id", "bug", "description")
+VALUES (:project_id, :activity_id, :bug, :description)
+ON CONFLICT ("project_id", "activity_id", "bug", "description") DO NOTHING
+RETURNING id
@@ -0,0 +1,66 @@
+(ns time-tracker.assets
+  (:require [clojure.java.io :as io]
+            [clojure.string :as string]
+            [ring.util.mime-type :refer [ext-mime-type]]
+            [ring.util.response :refer [url-response header content-type not-found]]
+            [time-tracker.build-version :as vers]))
+
+;; Serves the static files under /assets/<build version>/, so each build's
+;; files have URLs of their own and browsers can keep them for good. Where
+;; `lein precompress` has left a .br or .gz copy of a file beside it, that is
+;; sent to browsers that accept it instead of compressing on every request.
+
+(def ^:private root "time_tracker/public/")
+
+(def ^:private mime-types
+  {"less" "text/css"
+   "map" "application/json"})
+
+(def ^:private encodings
+  "Content codings in order of preference, with the suffix of their copies."
+  [["br" ".br"]
+   ["gzip" ".gz"]])
+
+(defn version-path
+  "The build version as it appears in asset URLs."
+  []
+  (string/replace (string/trim @vers/version) #"[^\w.-]" "_"))
+
+(defn asset-url
+  "The URL path of the static file at path under the public resources."
+  [path]
+  (str "/assets/" (version-path) "/" path))
+
+(defn- accepted-encodings [accept-encoding]
+  (set (for [part (string/split (or accept-encoding "") #",")
+             :let [[coding & params] (map string/trim (string/split part #";"))]
+             :when (not-any? #(re-matches #"q=0(\.0*)?" %) params)]
+         (string/lower-case coding))))
+
+(defn- encoded-copy
+  "The most preferred [coding url] of path's precompressed copies that the
+  client accepts, or nil."
+  [path accept-encoding]
+  (let [accepted (accepted-encodings accept-encoding)]
+    (some (fn [[coding suffix]]
+            (when (accepted coding)
+              (some->> (io/resource (str root path suffix)) (vector coding))))
+          encodings)))
+
+(defn asset-response
+  "Serves the public resource at path for request. Files of this build are
+  cached for good; files asked for under another build's version are served
+  (from this build) but must be revalidated, so they aren't kept under a
+  URL that means something else."
+  [{:keys [headers]} version path]
+  (let [[coding encoded-url] (encoded-copy path (get headers "accept-encoding"))]
+    (if-let [response (when-not (re-find #"(^|/)\.\.(/|$)" path)
+                        (some-> (or encoded-url (io/resource (str root path))) url-response))]
+      (-> response
+          (content-type (or (ext-mime-type path mime-types) "application/octet-stream"))
+          (header "Vary" "Accept-Encoding")
+          (header "Cache-Control" (if (= version (version-path))
+                                    "public, max-age=31536000, immutable"
+                                    "no-cache"))
+          (cond-> coding (header "Content-Encoding" coding)))
+      (not-found "Not found"))))
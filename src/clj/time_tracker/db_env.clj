@@ -1,6 +1,25 @@
 (ns time-tracker.db-env
   (:require [environ.core :refer [env]]))
 
+(def pool-defaults
+  "The connection pool's settings unless overridden by the DB_POOL_*
+  environment variables of the same names. See time-tracker.postgresql."
+  {:partitions 1
+   :min-connections 2
+   :max-connections 10
+   :checkout-timeout-ms 5000
+   :connect-timeout-s 10
+   :idle-test-period-s 60
+   :statement-cache-size 100
+   :prepare-threshold 1})
+
+(defn pool-from-env []
+  (into {}
+        (for [[k default] pool-defaults]
+          [k (if-let [v (env (keyword (str "db-pool-" (name k))))]
+               (Long/parseLong v)
+               default)])))
+
 (defn db-from-env []
   (let [db-url (env :database-url)]
     (if (nil? db-url)
@@ -13,4 +32,5 @@
          :jdbc-url (format "jdbc:postgresql://%s:%s%s" (.getHost db-uri) port (.getPath db-uri))
          :subname (format "//%s:%s%s" (.getHost db-uri) port (.getPath db-uri))
          :user username
-         :password password}))))
+         :password password
+         :pool (pool-from-env)}))))
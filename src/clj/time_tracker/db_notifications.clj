@@ -0,0 +1,134 @@
+(ns time-tracker.db-notifications
+  (:require [com.stuartsierra.component :as component]
+            [clojure.java.jdbc :as j]
+            [clojure.tools.logging :as log])
+  (:import [java.sql Connection Statement]
+           [org.postgresql PGConnection PGNotification]))
+
+;; Hands the notifications that triggers send with NOTIFY to whatever in the
+;; instance subscribes to their channel, so that changes made through any
+;; instance, or straight in the database, reach every instance. One thread
+;; per instance LISTENs on a connection of its own; it comes from the pool,
+;; so it UNLISTENs before going back. The listening promise is delivered
+;; once it has first LISTENed.
+;;
+;; The driver only reads notifications when it talks to the server, and
+;; this version of it can't wait for them, so the listener asks for them
+;; every poll-ms. That is a round trip on an otherwise idle connection, and
+;; also how long a notification may wait before it is handled.
+;;
+;; Notifications sent while nothing is listening, as while the listener
+;; reconnects, are lost. So each handler is also called with nil whenever
+;; listening (re)starts, to catch up however it sees fit.
+;;
+;; Notifications arrive in the order their transactions committed, and are
+;; handled one at a time, so sync! can tell when everything committed before
+;; it has been handled by sending one of its own.
+
+(def default-options
+  {:channels ["task_time_changes" "reference_data_changes"]
+   :poll-ms 1000
+   :retry-ms 5000})
+
+(defn subscribe!
+  "Calls (f payload) for each notification on channel from now on, until
+  unsubscribe! is called with the same channel and key."
+  [notifications channel key f]
+  (when notifications
+    (swap! (:handlers notifications) assoc-in [channel key] f))
+  nil)
+
+(defn unsubscribe! [notifications channel key]
+  (when notifications
+    (swap! (:handlers notifications) update channel dissoc key))
+  nil)
+
+(def ^:private sync-channel "db_notifications_sync")
+
+(defn sync!
+  "Waits up to timeout-ms for the handlers to have been called with every
+  notification sent before the call, returning whether they have."
+  [{:keys [db listening] :as notifications} timeout-ms]
+  (let [deadline (+ (System/currentTimeMillis) timeout-ms)
+        token (str (java.util.UUID/randomUUID))
+        synced (promise)]
+    (subscribe! notifications sync-channel token #(when (= token %) (deliver synced true)))
+    (try
+      (and (deref listening timeout-ms false)
+           (do
+             (j/query (:conn db) ["SELECT pg_notify(?, ?)" sync-channel token])
+             (deref synced (max 0 (- deadline (System/currentTimeMillis))) false)))
+      (finally
+        (unsubscribe! notifications sync-channel token)))))
+
+(defn- notify!
+  "Calls the handlers for channel with payload. A handler that throws is
+  logged and doesn't stop the others."
+  [{:keys [handlers]} channel payload]
+  (doseq [[key f] (get @handlers channel)]
+    (try
+      (f payload)
+      (catch Exception e
+        (log/error e ::handler-failed channel key payload)))))
+
+(defn- unlisten! [^Statement statement]
+  (try
+    (.execute statement "UNLISTEN *")
+    (catch Exception e
+      (log/warn e ::unlisten-failed))))
+
+(defn- listen! [{:keys [db channels running poll-ms listening] :as notifications}]
+  (with-open [^Connection conn (j/get-connection (:conn db))
+              ^Statement statement (.createStatement conn)]
+    (let [^PGConnection pg (.unwrap conn PGConnection)]
+      (try
+        (doseq [channel (conj channels sync-channel)]
+          (.execute statement (str "LISTEN " channel)))
+        (log/info ::listening channels)
+        (doseq [channel channels]
+          (notify! notifications channel nil))
+        (deliver listening true)
+        (while @running
+          (.execute statement "SELECT 1")
+          (doseq [^PGNotification n (.getNotifications pg)]
+            (notify! notifications (.getName n) (.getParameter n)))
+          (Thread/sleep poll-ms))
+        (finally
+          (unlisten! statement))))))
+
+(defn- listen-loop [{:keys [running retry-ms] :as notifications}]
+  (while @running
+    (try
+      (listen! notifications)
+      (catch InterruptedException e
+        (reset! running false))
+      (catch Exception e
+        (log/error e ::listen-failed)
+        (try
+          (Thread/sleep retry-ms)
+          (catch InterruptedException e
+            (reset! running false)))))))
+
+(defrecord DbNotifications [db channels poll-ms retry-ms handlers running listening thread]
+  component/Lifecycle
+  (start [self]
+    (let [self (assoc self
+                      :handlers (atom {})
+                      :running (atom true)
+                      :listening (promise))
+          thread (doto (Thread. ^Runnable #(listen-loop self) "db-notifications-listener")
+                   (.setDaemon true)
+                   (.start))]
+      (assoc self :thread thread)))
+  (stop [self]
+    (when running
+      (reset! running false))
+    (when thread
+      (.interrupt ^Thread thread))
+    (assoc self :handlers nil :running nil :listening nil :thread nil)))
+
+(defn instance
+  ([]
+   (instance {}))
+  ([options]
+   (map->DbNotifications (merge default-options options))))
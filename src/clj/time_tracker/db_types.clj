@@ -1,7 +1,8 @@
 (ns time-tracker.db-types
   (:require [clojure.java.jdbc :as j]
             [clj-time.format :as f])
-  (:import [org.joda.time LocalDate DateTime]))
+  (:import [org.joda.time LocalDate DateTime]
+           [java.sql PreparedStatement]))
 
 (extend-protocol j/ISQLValue
   org.joda.time.LocalDate
@@ -10,3 +11,15 @@
   DateTime
   (sql-value [val]
     (f/unparse (f/formatters :date-time) val)))
+
+;; A collection bound as a single SQL array parameter, e.g. for `= ANY(?)`.
+;; type is the Postgres name of the element type, such as "int4" or "text".
+(defrecord SqlArray [type values])
+
+(defn sql-array [type values]
+  (->SqlArray type values))
+
+(extend-protocol j/ISQLParameter
+  SqlArray
+  (set-parameter [{:keys [type values]} ^PreparedStatement stmt ix]
+    (.setArray stmt ix (.createArrayOf (.getConnection stmt) type (to-array values)))))
@@ -1,56 +1,119 @@
 (ns time-tracker.environ
-  (:require [clojure.tools.logging :as log]
+  (:require [clojure.edn :as edn]
+            [clojure.tools.logging :as log]
             [com.stuartsierra.component :as component]
             [environ.core :refer [env]]
             [time-tracker.db-env :refer [db-from-env]]
+            [time-tracker.db-notifications]
             [time-tracker.graphs-data]
             [time-tracker.jetty]
+            [time-tracker.metrics]
             [time-tracker.migrator]
             [time-tracker.missed-timesheets]
             [time-tracker.postgresql]
+            [time-tracker.reference-data]
+            [time-tracker.report-cache]
+            [time-tracker.task-cache]
+            [time-tracker.tickets]
+            [time-tracker.time-changes]
+            [time-tracker.time-events]
             [time-tracker.ring-composite]
             [time-tracker.time-service]
             [time-tracker.timezilla]))
 
-(defn core-system [db-locator]
-  (component/system-map
-   :db         (time-tracker.postgresql/postgresql db-locator)
-   :migrator   (component/using
-                (time-tracker.migrator/instance)
-                [:db])
-   :time-app   (component/using
-                (time-tracker.time-service/instance)
-                [:db :migrator])
-   :tardy-timesheets
-   (component/using
-    (time-tracker.missed-timesheets/instance)
-    [:db :migrator])
-   :timezilla  (component/using
-                (time-tracker.timezilla/instance)
-                {:db :db})
-   :graphs     (component/using
-                (time-tracker.graphs-data/instance)
-                [:db :migrator])
-   :web-app    (component/using
-                (time-tracker.ring-composite/overlay [:time-app :tardy-timesheets :timezilla :graphs])
-                [:tardy-timesheets :time-app :migrator :timezilla :graphs])))
+(defn core-system
+  ([db-locator]
+   (core-system db-locator {}))
+  ([db-locator {:keys [graphs notifications]}]
+   (component/system-map
+    :metrics    (time-tracker.metrics/instance)
+    :db         (component/using
+                 (time-tracker.postgresql/postgresql db-locator)
+                 [:metrics])
+    :migrator   (component/using
+                 (time-tracker.migrator/instance)
+                 [:db])
+    :notifications (component/using
+                    (time-tracker.db-notifications/instance notifications)
+                    [:db :migrator])
+    :reference-data (component/using
+                     (time-tracker.reference-data/instance)
+                     [:db :migrator :notifications])
+    :task-cache (time-tracker.task-cache/instance)
+    :time-changes (time-tracker.time-changes/instance)
+    :time-app   (component/using
+                 (time-tracker.time-service/instance)
+                 [:db :migrator :reference-data :task-cache :time-changes])
+    :time-events (component/using
+                  (time-tracker.time-events/instance)
+                  [:reference-data :notifications :metrics])
+    :tardy-timesheets
+    (component/using
+     (time-tracker.missed-timesheets/instance)
+     [:db :migrator])
+    :tickets    (time-tracker.tickets/instance)
+    :report-cache (component/using
+                   (time-tracker.report-cache/instance)
+                   [:time-changes :notifications :metrics])
+    :timezilla  (component/using
+                 (time-tracker.timezilla/instance)
+                 {:db :db :tickets :tickets :report-cache :report-cache})
+    :graphs     (component/using
+                 (time-tracker.graphs-data/instance graphs)
+                 [:db :migrator])
+    :web-app    (component/using
+                 (time-tracker.ring-composite/overlay [:metrics :time-events :time-app :tardy-timesheets :timezilla :graphs])
+                 [:metrics :time-events :tardy-timesheets :time-app :migrator :timezilla :graphs]))))
 
 (defn with-web-server
   "Returns an instance of the complete running system"
-  [{:keys [port db-locator] :as config}]
+  [{:keys [port db-locator jetty] :as config}]
   (merge
-   (core-system db-locator)
+   (core-system db-locator config)
    (component/system-map
     :web-server (component/using
-                 (time-tracker.jetty/jetty-server port)
-                 [:web-app]))))
+                 (time-tracker.jetty/jetty-server port jetty)
+                 [:web-app :metrics]))))
 
 (defn int-opt
   [n]
   (when n
     (Integer/parseInt n)))
 
+(defn jetty-opts
+  "Overrides for time-tracker.jetty/default-options from the environment.
+  TIMETRACKER_ROUTE_LIMITS is a map in EDN, e.g. {\"/graphs/*\" 4}."
+  []
+  (into {}
+        (remove (comp nil? val))
+        {:min-threads (int-opt (:timetracker-min-threads env))
+         :max-threads (int-opt (:timetracker-max-threads env))
+         :max-queued (int-opt (:timetracker-max-queued env))
+         :shed-queued (int-opt (:timetracker-shed-queued env))
+         :accept-queue-size (int-opt (:timetracker-accept-queue-size env))
+         :retry-after-s (int-opt (:timetracker-retry-after-s env))
+         :route-limits (some-> (:timetracker-route-limits env) edn/read-string)}))
+
+(defn graphs-opts
+  "Overrides for time-tracker.graphs-data/default-options from the
+  environment."
+  []
+  (into {}
+        (remove (comp nil? val))
+        {:threads (int-opt (:timetracker-graphs-threads env))}))
+
+(defn notifications-opts
+  "Overrides for time-tracker.db-notifications/default-options from the
+  environment."
+  []
+  (into {}
+        (remove (comp nil? val))
+        {:poll-ms (int-opt (:timetracker-notifications-poll-ms env))}))
+
 (defn system []
   (let [env-config {:port       (or (int-opt (:timetracker-port env)) 18000)
-                    :db-locator (db-from-env)}]
+                    :db-locator (db-from-env)
+                    :jetty      (jetty-opts)
+                    :graphs     (graphs-opts)
+                    :notifications (notifications-opts)}]
     (with-web-server env-config)))
@@ -19,7 +19,8 @@
              [schema.utils :as su]
              [clojure.tools.logging :as log]
              [time-tracker.db-types])
-  (:import [org.joda.time LocalDate]))
+  (:import [java.util.concurrent ExecutorService Executors Future]
+           [org.joda.time LocalDate]))
 
 (defquery query-projects-by-day "sql/query-projects-by-day.sql")
 (defquery query-projects-for-period "sql/query-projects-for-period.sql")
@@ -64,64 +65,95 @@
        (iterate #(t/plus % (t/days 1)))
        (take-while #(t/before? % end))))
 
+;; Each of the graphs is a query followed by some reshaping. The data
+;; functions below take the db spec rather than a connection, so that every
+;; query checks out its own connection from the pool and the dashboard can
+;; run them side by side, on a fixed pool of threads so that a burst of
+;; dashboards can't hold more than that many connections between them.
+
+(def default-options
+  {:threads 8})
+
+(defn- run-all
+  "Runs the functions fs on pool and returns their results in order."
+  [^ExecutorService pool fs]
+  (let [futures (mapv #(.submit pool ^Callable %) fs)]
+    (mapv #(.get ^Future %) futures)))
+
+(defn- period-params [user-name start end]
+  {:user_name user-name :start_date start :end_date end})
+
+(defn projects-by-day-data [conn user-name start-date end-date]
+  (let [data (->> (query-projects-by-day (period-params user-name start-date end-date) {:connection conn})
+                  (map #(update-in % [:day] (partial f/parse-local-date (f/formatters :date)))))
+        grouped (group-by :day data)]
+    (reduce
+     (fn [grouped date]
+       (if (contains? grouped date)
+         grouped
+         (assoc grouped date [])))
+     grouped (date-range start-date end-date))))
+
+(defn start-of-week [d]
+  (let [dow (t/day-of-week d)
+        adjustment (-> dow dec - t/days)]
+    (t/plus d adjustment)))
+
+(defn- projects-for-week-queries
+  "The queries behind projects-for-week-data: the hours by project for the
+  week date falls in, and the total for the week before."
+  [conn user-name date]
+  (let [start (start-of-week date)
+        end (t/plus start (t/days 7))
+        prev-start (t/plus start (t/days -7))]
+    [#(query-projects-for-period (period-params user-name start end) {:connection conn})
+     #(first (query-total-hours-for-period (period-params user-name prev-start start) {:connection conn}))]))
+
+(defn- projects-for-week-result [by-project prev-week]
+  {:current-week
+   (zipmap (map :id by-project)
+           (map #(select-keys % [:name :hours]) by-project))
+   :prev-week prev-week})
+
+(defn projects-for-week-data [conn user-name date]
+  (let [[by-project prev-week] (map #(%) (projects-for-week-queries conn user-name date))]
+    (projects-for-week-result by-project prev-week)))
+
+(defn hours-by-day-data [conn user-name start-date end-date]
+  (let [data (->> (query-hours-by-day (period-params user-name start-date end-date) {:connection conn})
+                  (map #(update-in % [:day] (partial f/parse-local-date (f/formatters :date)))))
+        dates (into #{} (date-range start-date end-date))
+        known-dates (into #{} (map :day data))
+        missing-dates (difference dates known-dates)
+        extras (map #(hash-map :day % :hours 0) missing-dates)
+        complete (concat data extras)
+        fmt (f/formatter "e")]
+    (zipmap (map :day complete)
+            (map #(let [{:keys [hours day]} %] [{:hours hours :project (f/unparse-local fmt day)}]) complete))))
+
 (defn projects-by-day [{:keys [conn] :as db}]
   (resource
    :available-media-types ["application/json"]
    :allowed-methods [:get]
    :malformed? (parse-params-with parse-user-period-query)
-   :exists?
-   (fn [{:keys [::query]}]
-     (prn ::query query)
-     (let [{:keys [user-name start-date end-date]} query
-           data (->> (query-projects-by-day {:user_name user-name :start_date start-date :end_date end-date} {:connection conn})
-                     (map #(update-in % [:day] (partial f/parse-local-date (f/formatters :date)))))]
-       {::data data}))
-
    :handle-ok
-   (fn [{:keys [::data ::query] :as ctx}]
-     (let [{:keys [start-date end-date]} query
-           dates (date-range start-date end-date)
-           grouped (group-by :day data)]
-       (reduce
-        (fn [grouped date]
-          (if (contains? grouped date)
-            grouped
-            (assoc grouped date [])))
-        grouped dates)))
+   (fn [{:keys [::query]}]
+     (let [{:keys [user-name start-date end-date]} query]
+       (projects-by-day-data conn user-name start-date end-date)))
 
    :handle-malformed handle-malformed
 
    :handle-exception (fn [{:keys [exception]}] (log/error exception "in projects by day"))))
 
-(defn start-of-week [d]
-  (let [dow (t/day-of-week d)
-        adjustment (-> dow dec - t/days)]
-    (t/plus d adjustment)))
-
 (defn projects-for-week [{:keys [conn] :as db}]
   (resource
    :available-media-types ["application/json"]
    :allowed-methods [:get]
    :malformed? (parse-params-with parse-user-date-query)
-
-   :exists?
-   (fn [{:keys [::query]}]
-     (let [{:keys [user-name date]} query
-           start (start-of-week date)
-           end (t/plus start (t/days 7))
-           prev-start (t/plus start (t/days -7))
-           by-project (query-projects-for-period {:user_name user-name :start_date start :end_date end} {:connection conn})
-           prev-week-total (first (query-total-hours-for-period {:user_name user-name :start_date prev-start :end_date start} {:connection conn}))]
-
-       (prn ::by-project by-project)
-       {::by-project by-project ::prev-week prev-week-total}))
-
    :handle-ok
-   (fn [{:keys [::by-project ::period ::prev-week]}]
-     {:current-week
-      (zipmap (map :id by-project)
-              (map #(select-keys % [:name :hours]) by-project))
-      :prev-week prev-week})
+   (fn [{:keys [::query]}]
+     (let [{:keys [user-name date]} query]
+       (projects-for-week-data conn user-name date)))
 
    :handle-exception (fn [{:keys [exception]}] (log/error exception "in projects by day"))))
 
@@ -130,43 +162,68 @@
    :available-media-types ["application/json"]
    :allowed-methods [:get]
    :malformed? (parse-params-with parse-user-period-query)
+   :handle-ok
+   (fn [{:keys [::query]}]
+     (let [{:keys [user-name start-date end-date]} query]
+       (hours-by-day-data conn user-name start-date end-date)))
+
+   :handle-malformed handle-malformed
+
+   :handle-exception (fn [{:keys [exception]}] (log/error exception "in projects by day"))))
+
+(def user-dashboard-query
+  {:date LocalDate :user-name s/Str (s/optional-key :days-back) s/Int})
 
-   :exists?
-   (fn [{:keys [::data ::query] :as ctx}]
-     (let [{:keys [user-name start-date end-date]} query
-           data (->> (query-hours-by-day {:user_name user-name :start_date start-date :end_date end-date} {:connection conn})
-                     (map #(update-in % [:day] (partial f/parse-local-date (f/formatters :date)))))]
-       {::data data}))
+(def parse-user-dashboard-query
+  (sc/coercer user-dashboard-query (merge sc/+string-coercions+ coercions)))
 
+(def default-days-back 28)
+
+(defn dashboard [{:keys [conn] :as db} pool]
+  (resource
+   :available-media-types ["application/json"]
+   :allowed-methods [:get]
+   :malformed? (parse-params-with parse-user-dashboard-query)
    :handle-ok
-   (fn [{:keys [::data ::query] :as ctx}]
-     (let [{:keys [start-date end-date]} query
-           dates (into #{} (date-range start-date end-date))
-           known-dates (into #{} (map :day data))
-           missing-dates (difference dates known-dates)
-           extras (map #(hash-map :day % :hours 0) missing-dates)
-           complete (concat data extras)
-           fmt (f/formatter "e")]
-       (zipmap (map :day complete)
-               (map #(let [{:keys [hours day]} %] [{:hours hours :project (f/unparse-local fmt day)}]) complete))))
+   (fn [{:keys [::query]}]
+     (let [{:keys [user-name date days-back] :or {days-back default-days-back}} query
+           start-date (t/minus date (t/days days-back))
+           [by-project prev-week by-day]
+           (run-all pool (conj (projects-for-week-queries conn user-name date)
+                               #(hours-by-day-data conn user-name start-date date)))]
+       {:projects-for-week (projects-for-week-result by-project prev-week)
+        :hours-by-day by-day}))
 
    :handle-malformed handle-malformed
 
-   :handle-exception (fn [{:keys [exception]}] (log/error exception "in projects by day"))))
+   :handle-exception (fn [{:keys [exception]}] (log/error exception "in dashboard"))))
 
-(defn app [{:keys [db] :as self}]
+(defn app [{:keys [db pool] :as self}]
   (routes
    (ANY "/graphs/projects-by-day" []
      (projects-by-day db))
    (ANY "/graphs/projects-for-week" []
      (projects-for-week db))
    (ANY "/graphs/hours-by-day" []
-     (hours-by-day db))))
+     (hours-by-day db))
+   (ANY "/graphs/dashboard" []
+     (dashboard db pool))))
+
+(defrecord GraphsService [db threads pool]
+  component/Lifecycle
+  (start [self]
+    (assoc self :pool (Executors/newFixedThreadPool threads)))
+  (stop [self]
+    (when pool
+      (.shutdownNow ^ExecutorService pool))
+    (assoc self :pool nil))
 
-(defrecord GraphsService [db]
   ring/RingRequestHandler
   (request-handler [self]
     (-> self app wrap-keyword-params wrap-params)))
 
-(defn instance []
-  (map->GraphsService {}))
+(defn instance
+  ([]
+   (instance {}))
+  ([options]
+   (map->GraphsService (merge default-options options))))
@@ -1,17 +1,125 @@
 (ns time-tracker.jetty
   (:require  [com.stuartsierra.component :as component]
-             [ring.adapter.jetty :refer [run-jetty]]
+             [ring.util.servlet :as servlet]
+             [time-tracker.metrics :as metrics]
              [time-tracker.ring :as ring]
-             [clojure.tools.logging :as log]))
+             [clojure.tools.logging :as log])
+  (:import [java.util.concurrent ArrayBlockingQueue Semaphore]
+           [javax.servlet.http HttpServletRequest HttpServletResponse]
+           [org.eclipse.jetty.server Request Server ServerConnector]
+           [org.eclipse.jetty.server.handler AbstractHandler]
+           [org.eclipse.jetty.util.thread QueuedThreadPool]))
 
-(defrecord JettyServer [port web-app server]
+;; Runs the web app on a bounded thread pool, so that a burst of requests
+;; queues (up to max-queued) rather than piling ever more threads onto the
+;; database, and sheds load once it builds up: while more than shed-queued
+;; requests are waiting for a thread, and when a route is already serving
+;; as many requests as its limit in route-limits allows, requests are
+;; answered 503 with a Retry-After straight away. A route's permit is held
+;; until its response has been written, so long reports and event streams
+;; count against their limit for as long as they occupy a thread.
+;;
+;; Requests are only shed once a thread picks them up. Should the queue
+;; itself fill, Jetty can't take on a connection's work at all and closes
+;; it without a response, so max-queued wants to stay well above
+;; shed-queued.
+
+(def default-options
+  {:min-threads 8
+   :max-threads 64
+   :max-queued 256
+   :shed-queued 128
+   :accept-queue-size 128
+   ;; How long an idle thread is kept above min-threads, and how long an
+   ;; idle connection is kept open (ring's adapter uses 200s for the latter).
+   :thread-idle-timeout-ms 60000
+   :connector-idle-timeout-ms 200000
+   :retry-after-s 5
+   :route-limits {"/timezilla-result" 4
+                  "/timezilla-result.csv" 4
+                  "/graphs/*" 8
+                  "/time/events" 16}})
+
+(defn- overloaded [retry-after-s]
+  {:status 503
+   :headers {"Retry-After" (str retry-after-s)
+             "Content-Type" "text/plain; charset=utf-8"}
+   :body "Too busy just now, please try again shortly."})
+
+(defn- shed? [^QueuedThreadPool pool shed-queued ^Semaphore permits]
+  (or (> (.getQueueSize pool) shed-queued)
+      (and permits (not (.tryAcquire permits)))))
+
+(defn- write-response!
+  "As servlet/update-servlet-response, but a body that is a function is
+  called with the response's OutputStream to write the body itself, as
+  ring 1.6's StreamableResponseBody allows. Writes to that stream throw once
+  the client has gone away, where the PrintWriter ring writes seq bodies to
+  swallows the error and carries on."
+  [^HttpServletResponse response {:keys [body] :as response-map}]
+  (if (fn? body)
+    (do
+      (servlet/update-servlet-response response (assoc response-map :body nil))
+      (body (.getOutputStream response)))
+    (servlet/update-servlet-response response response-map)))
+
+(defn- jetty-handler
+  "As ring's own Jetty handler, but answering 503 rather than running
+  handler when shed? says so."
+  [handler {:keys [pool metrics shed-queued retry-after-s route-permits]}]
+  (proxy [AbstractHandler] []
+    (handle [_ ^Request base-request ^HttpServletRequest request ^HttpServletResponse response]
+      (let [request-map (servlet/build-request-map request)
+            route (metrics/route-label (:uri request-map))
+            ^Semaphore permits (get route-permits route)]
+        (try
+          (if (shed? pool shed-queued permits)
+            (do
+              (metrics/inc! metrics "http_requests_shed_total" {:route route})
+              (servlet/update-servlet-response response (overloaded retry-after-s)))
+            (try
+              (when-let [response-map (handler request-map)]
+                (write-response! response response-map))
+              (finally
+                (when permits
+                  (.release permits)))))
+          (finally
+            (.setHandled base-request true)))))))
+
+(defn- register-gauges! [metrics ^QueuedThreadPool pool]
+  (metrics/register-gauge! metrics "jetty_threads" {:state "busy"} #(.getBusyThreads pool))
+  (metrics/register-gauge! metrics "jetty_threads" {:state "idle"} #(.getIdleThreads pool))
+  (metrics/register-gauge! metrics "jetty_queued_requests" {} #(.getQueueSize pool)))
+
+(defrecord JettyServer [port web-app metrics server
+                        min-threads max-threads max-queued shed-queued accept-queue-size
+                        thread-idle-timeout-ms connector-idle-timeout-ms retry-after-s route-limits]
   component/Lifecycle
   (start [component]
-    (log/info ::starting-jetty :port port)
-    (let [server (run-jetty (ring/request-handler web-app) {:port port :join? false})
-          port' (->> server (.getConnectors) (some (memfn getLocalPort)))]
-      (log/info ::started-jetty server :on-port port')
-      (assoc component :server server :port port')))
+    (log/info ::starting-jetty :port port :max-threads max-threads :max-queued max-queued)
+    (let [pool (doto (QueuedThreadPool. (int max-threads) (int min-threads) (int thread-idle-timeout-ms)
+                                        (ArrayBlockingQueue. (int max-queued)))
+                 (.setName "jetty"))
+          server (Server. pool)
+          connector (doto (ServerConnector. server)
+                      (.setPort port)
+                      (.setAcceptQueueSize accept-queue-size)
+                      (.setIdleTimeout connector-idle-timeout-ms))
+          route-permits (into {} (for [[route limit] route-limits]
+                                   [route (Semaphore. (int limit))]))]
+      (doto server
+        (.addConnector connector)
+        (.setHandler (jetty-handler (ring/request-handler web-app)
+                                    {:pool pool
+                                     :metrics metrics
+                                     :shed-queued shed-queued
+                                     :retry-after-s retry-after-s
+                                     :route-permits route-permits}))
+        (.start))
+      (register-gauges! metrics pool)
+      (let [port' (.getLocalPort connector)]
+        (log/info ::started-jetty server :on-port port')
+        (assoc component :server server :port port'))))
 
   (stop [component]
     (when server
@@ -19,5 +127,7 @@
     (assoc component :server nil)))
 
 (defn jetty-server
-  [port]
-  (map->JettyServer {:port port}))
+  ([port]
+   (jetty-server port {}))
+  ([port options]
+   (map->JettyServer (merge default-options options {:port port}))))
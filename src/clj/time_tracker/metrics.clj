@@ -0,0 +1,196 @@
+(ns time-tracker.metrics
+  (:require [com.stuartsierra.component :as component]
+            [compojure.core :refer [GET]]
+            [clojure.string :as string]
+            [clojure.tools.logging :as log]
+            [time-tracker.ring :as ring])
+  (:import [java.util.concurrent.atomic AtomicLong AtomicLongArray]))
+
+;; An in-process registry of counters, gauges and latency histograms,
+;; rendered in the Prometheus text exposition format on /metrics. Every
+;; function here accepts a nil registry and does nothing with it, so code
+;; outside the web system (the bench harness, the REPL) needn't carry one.
+;;
+;; Histograms are cumulative counts in fixed buckets, with their sum and
+;; count, so that Prometheus can work out rates and quantiles over whatever
+;; window it is asked for, rather than over everything since start up.
+
+(def ^:private buckets
+  "Upper bounds of the histogram buckets, in seconds."
+  [0.001 0.0025 0.005 0.01 0.025 0.05 0.1 0.25 0.5 1.0 2.5 5.0 10.0])
+
+(def ^:private ^longs bucket-micros
+  (long-array (map #(long (* % 1e6)) buckets)))
+
+(def ^:private routes
+  "Maps request paths to the route they were served by, so that ids in the
+  path don't give every request its own set of series."
+  [[#"^/$" "/"]
+   [#"^/time$" "/time"]
+   [#"^/time/batch$" "/time/batch"]
+   [#"^/time/events$" "/time/events"]
+   [#"^/time/\d+$" "/time/:id"]
+   [#"^/projects$" "/projects"]
+   [#"^/projects/\d+$" "/projects/:id"]
+   [#"^/activities$" "/activities"]
+   [#"^/activities/\d+$" "/activities/:id"]
+   [#"^/users$" "/users"]
+   [#"^/users/\d+$" "/users/:id"]
+   [#"^/timezilla-result\.csv$" "/timezilla-result.csv"]
+   [#"^/timezilla-result" "/timezilla-result"]
+   [#"^/graphs/" "/graphs/*"]
+   [#"^/assets/" "/assets/*"]
+   [#"^/forgotten-timesheets$" "/forgotten-timesheets"]
+   [#"^/metrics$" "/metrics"]])
+
+(defn route-label [uri]
+  (or (some (fn [[re label]] (when (re-find re uri) label)) routes)
+      "other"))
+
+(defn- series!
+  "Returns the kind of metric held under name and labels, creating it with
+  (make) if need be."
+  [{:keys [registry]} kind name labels make]
+  (let [k [name (into (sorted-map) labels)]]
+    (or (get-in @registry [kind k])
+        (-> (swap! registry update kind
+                   (fn [series]
+                     (if (contains? series k)
+                       series
+                       (assoc series k (make)))))
+            (get-in [kind k])))))
+
+(defn inc!
+  "Adds n (default 1) to the counter name{labels}."
+  ([metrics name labels]
+   (inc! metrics name labels 1))
+  ([metrics name labels n]
+   (when metrics
+     (.addAndGet ^AtomicLong (series! metrics :counter name labels #(AtomicLong.)) n))))
+
+(defn- histogram []
+  {:buckets (AtomicLongArray. (count buckets))
+   :sum (AtomicLong.)
+   :count (AtomicLong.)})
+
+(defn- bucket-index
+  "The first bucket that micros falls in, or nil when it is beyond them all."
+  [micros]
+  (loop [i 0]
+    (when (< i (alength bucket-micros))
+      (if (<= micros (aget bucket-micros i))
+        i
+        (recur (inc i))))))
+
+(defn record!
+  "Records a duration in nanoseconds in the histogram name{labels}."
+  [metrics name labels nanos]
+  (when metrics
+    (let [{^AtomicLongArray counts :buckets ^AtomicLong sum :sum ^AtomicLong total :count}
+          (series! metrics :histogram name labels histogram)
+          micros (max 0 (quot nanos 1000))]
+      (some->> (bucket-index micros) (.incrementAndGet counts))
+      (.addAndGet sum micros)
+      (.incrementAndGet total))))
+
+(defn level
+  "Returns the AtomicLong behind the gauge name{labels}, for values that go
+  up and down as things start and finish. Returns nil without a registry."
+  [metrics name labels]
+  (when metrics
+    (series! metrics :gauge name labels #(AtomicLong.))))
+
+(defn register-gauge!
+  "Reports (f) as the gauge name{labels} each time the metrics are read."
+  [metrics name labels f]
+  (when metrics
+    (swap! (:registry metrics) assoc-in [:gauge [name (into (sorted-map) labels)]] f)
+    nil))
+
+(defn- escape [v]
+  (string/escape (str v) {\\ "\\\\" \" "\\\"" \newline "\\n"}))
+
+(defn- label-string [labels]
+  (when (seq labels)
+    (str "{" (string/join "," (for [[k v] labels] (format "%s=\"%s\"" (name k) (escape v)))) "}")))
+
+(defn- gauge-value [g]
+  (if (instance? AtomicLong g)
+    (.get ^AtomicLong g)
+    (g)))
+
+(defn- micros->seconds [v]
+  (/ (double v) 1e6))
+
+(defn- render-series [kind name labels metric]
+  (case kind
+    :counter [(str name (label-string labels) " " (.get ^AtomicLong metric))]
+    :gauge [(str name (label-string labels) " " (gauge-value metric))]
+    :histogram (let [{^AtomicLongArray counts :buckets ^AtomicLong sum :sum ^AtomicLong total :count} metric
+                     cumulative (reductions + (map #(.get counts %) (range (.length counts))))
+                     ;; A record in progress may have reached its bucket but
+                     ;; not yet the count.
+                     n (max (.get total) (last cumulative))]
+                 (concat
+                  (for [[le c] (map vector
+                                    (concat (map str buckets) ["+Inf"])
+                                    (concat cumulative [n]))]
+                    (str name "_bucket" (label-string (assoc labels :le le)) " " c))
+                  [(str name "_sum" (label-string labels) " " (micros->seconds (.get sum)))
+                   (str name "_count" (label-string labels) " " n)]))))
+
+(defn render
+  "The registry in the Prometheus text format."
+  [{:keys [registry]}]
+  (let [lines (for [[kind series] (sort-by key @registry)
+                    [name by-labels] (group-by ffirst series)
+                    :let [by-labels (sort-by (comp str second first) by-labels)]
+                    line (cons (format "# TYPE %s %s" name (clojure.core/name kind))
+                               (mapcat (fn [[[_ labels] metric]]
+                                         (try
+                                           (render-series kind name labels metric)
+                                           (catch Exception e
+                                             (log/warn e ::render-failed name labels)
+                                             [])))
+                                       by-labels))]
+                line)]
+    (str (string/join "\n" lines) "\n")))
+
+(defn wrap-metrics
+  "Counts requests by route, method and status, times them per route and
+  tracks how many are in flight."
+  [handler metrics]
+  (fn [{:keys [uri request-method] :as req}]
+    (let [route (route-label uri)
+          ^AtomicLong in-flight (level metrics "http_requests_in_flight" {:route route})
+          started (System/nanoTime)
+          count! #(inc! metrics "http_requests_total"
+                        {:route route :method (name request-method) :status (str %)})]
+      (.incrementAndGet in-flight)
+      (try
+        (let [response (handler req)]
+          (count! (:status response 404))
+          response)
+        (catch Throwable t
+          (count! 500)
+          (throw t))
+        (finally
+          (.decrementAndGet in-flight)
+          (record! metrics "http_request_duration_seconds" {:route route} (- (System/nanoTime) started)))))))
+
+(defrecord Metrics [registry]
+  component/Lifecycle
+  (start [self]
+    (assoc self :registry (atom {})))
+  (stop [self]
+    (assoc self :registry nil))
+
+  ring/RingRequestHandler
+  (request-handler [self]
+    (GET "/metrics" []
+      {:status 200
+       :headers {"Content-Type" "text/plain; version=0.0.4; charset=utf-8"}
+       :body (render self)})))
+
+(defn instance []
+  (map->Metrics {}))
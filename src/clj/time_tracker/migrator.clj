@@ -13,6 +13,15 @@
      (let [context (javax.naming.InitialContext.)]
        (.lookup context ^String name)))))
 
+(defn- warn-without-overlap-constraint
+  "The migrations leave out task_time_no_overlap where btree_gist is missing
+  or the table holds overlapping entries, and only say so in a NOTICE."
+  [ds]
+  (when (empty? (jdbc/query {:datasource ds}
+                            ["SELECT 1 FROM pg_constraint WHERE conname = 'task_time_no_overlap'"]))
+    (log/warn ::no-overlap-constraint
+              "task_time has no task_time_no_overlap constraint; only the application keeps time entries from overlapping")))
+
 (defrecord Migrator [db]
   component/Lifecycle
   (start [self]
@@ -23,7 +32,8 @@
       (log/info ::ds ds)
       (doto migrator
         (.setDataSource ds)
-        (.migrate)))
+        (.migrate))
+      (warn-without-overlap-constraint ds))
     self)
 
   (stop [self] self))
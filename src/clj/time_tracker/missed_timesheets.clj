@@ -13,6 +13,7 @@
              [clojure.tools.logging :as log]))
 
 (defquery query-missed-timesheets "sql/query-missed-timesheets-by-user.sql")
+(defquery query-missed-timesheets-version "sql/query-missed-timesheets-version.sql")
 
 (html/defsnippet missed-row "time_tracker/missed-timesheets.html" [:#tardy-users :tbody :tr]
   [{:keys [last_entry hours days name]}]
@@ -25,16 +26,19 @@
   [rows]
   [:#tardy-users :tbody] (html/content (map missed-row rows)))
 
-(defn forgotten-timesheets [{:keys [conn] :as db}]
+(defn forgotten-timesheets
+  "The report is only run when the client doesn't already have it. Its ETag
+  comes from the per-user versions the database keeps alongside task_time,
+  and the date, as the report covers the last month."
+  [{:keys [conn] :as db}]
   (resource
    :available-media-types ["text/html"]
    :allowed-methods [:get]
    :exists? (fn [ctx]
-              (let [data (query-missed-timesheets {} {:connection conn})]
-                {::data data}))
-   :handle-ok (fn [{:keys [::data]}]
-                (apply str (template data)))
-   :etag (fn [{:keys [::data]}] (format "%08x" (hash data)))
+              {::version (:version (first (query-missed-timesheets-version {} {:connection conn})))})
+   :handle-ok (fn [ctx]
+                (apply str (template (query-missed-timesheets {} {:connection conn}))))
+   :etag (fn [{:keys [::version]}] version)
    :handle-exception (fn [{:keys [exception]}] (log/error exception "in missing timesheet report"))))
 
 (defn app [{:keys [db] :as self}]
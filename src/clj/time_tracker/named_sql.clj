@@ -0,0 +1,66 @@
+(ns time-tracker.named-sql
+  (:require [clojure.java.io :as io]
+            [clojure.string :as string]))
+
+;; Turns the yesql-style SQL files in resources/sql into plain clojure.java.jdbc
+;; parameter vectors, for the few places that need to call jdbc directly
+;; (e.g. to set a fetch size, which yesql can't pass through).
+
+(def ^:private token
+  #"'(?:[^']|'')*'|::|:([A-Za-z_][\w-]*)")
+
+(defn render
+  "Returns [sql & args] for sql with its :named parameters replaced by ?
+  placeholders, taking the values from params. A sequential value expands
+  to one placeholder per element, as yesql does for `IN (:ids)`. Quoted
+  strings and :: casts are left alone."
+  [sql params]
+  (let [args (volatile! [])
+        positional (string/replace
+                    sql token
+                    (fn [[match param]]
+                      (if-not param
+                        match
+                        (let [k (keyword param)
+                              _ (when-not (contains? params k)
+                                  (throw (ex-info "Missing SQL parameter" {:parameter k})))
+                              v (get params k)]
+                          (if (and (sequential? v) (seq v))
+                            (do
+                              (vswap! args into v)
+                              (string/join ", " (repeat (count v) "?")))
+                            (do
+                              (vswap! args conj (when-not (sequential? v) v))
+                              "?"))))))]
+    (into [positional] @args)))
+
+(def ^:private guarded-line
+  #"(?m)^([ \t]*)\[([\w\- ]+)\] ?(.*)(?:\n|$)")
+
+(defn expand
+  "Returns sql with the lines guarded by `[name ...]` kept, without their
+  guard, when every name is in flags and dropped otherwise. This lets one
+  file describe each combination of optional predicates, so that each
+  combination gets a statement of its own rather than one catch-all
+  statement that Postgres has to plan for every case."
+  [sql flags]
+  (string/replace sql guarded-line
+                  (fn [[_ indent names line]]
+                    (if (every? (comp flags keyword) (string/split names #" "))
+                      (str indent line "\n")
+                      ""))))
+
+(def ^:private resource-sql
+  (memoize #(slurp (io/resource %))))
+
+(def ^:private resource-statement
+  (memoize (fn [path flags]
+             (expand (resource-sql path) flags))))
+
+(defn render-resource
+  "As render, for the SQL in the named resource file expanded with flags.
+  The expansion is done once per resource and set of flags."
+  ([path params]
+   (render-resource path #{} params))
+  ([path flags params]
+   (render (resource-statement path (set flags)) params)))
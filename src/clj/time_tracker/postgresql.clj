@@ -2,23 +2,97 @@
   (:require  [com.stuartsierra.component :as component]
              [clj-bonecp-url.core :as bonecp]
              [clojure.tools.logging :as log]
-             [clojure.set :refer [map-invert]]))
+             [clojure.set :refer [map-invert]]
+             [time-tracker.db-env :refer [pool-defaults]]
+             [time-tracker.metrics :as metrics])
+  (:import [com.jolbox.bonecp BoneCP BoneCPDataSource]
+           [java.util Properties]
+           [java.util.concurrent.atomic AtomicLong]
+           [javax.sql DataSource]))
 
-(defrecord Postgres [db-ref conn]
+;; A BoneCP pool sized from the pool settings in the db locator (see
+;; time-tracker.db-env). Each connection caches its prepared statements, and
+;; the driver prepares them on the server from their first use, so a
+;; statement is only parsed and planned once per connection. Checkouts are
+;; timed and the pool's connections reported by state on /metrics.
+
+(defn- configure! [^BoneCPDataSource ds {:keys [user password]}
+                   {:keys [partitions min-connections max-connections checkout-timeout-ms
+                           connect-timeout-s idle-test-period-s statement-cache-size
+                           prepare-threshold]}]
+  (doto ds
+    (.setPartitionCount (int partitions))
+    (.setMinConnectionsPerPartition (int (max 1 (quot min-connections partitions))))
+    (.setMaxConnectionsPerPartition (int (max 1 (quot max-connections partitions))))
+    (.setConnectionTimeoutInMs (long checkout-timeout-ms))
+    (.setIdleConnectionTestPeriodInSeconds (long idle-test-period-s))
+    (.setConnectionTestStatement "SELECT 1")
+    (.setStatementsCacheSize (int statement-cache-size))
+    (.setLogStatementsEnabled false)
+    (.setDriverProperties (doto (Properties.)
+                            (.setProperty "user" (str user))
+                            (.setProperty "password" (str password))
+                            (.setProperty "connectTimeout" (str connect-timeout-s))
+                            (.setProperty "prepareThreshold" (str prepare-threshold))))))
+
+(defn- timed-datasource
+  "Wraps ds so that each checkout is counted while it waits and its wait
+  recorded."
+  [^DataSource ds metrics ^AtomicLong waiting]
+  (letfn [(checkout [f]
+            (let [started (System/nanoTime)]
+              (.incrementAndGet waiting)
+              (try
+                (f)
+                (finally
+                  (.decrementAndGet waiting)
+                  (metrics/record! metrics "db_pool_checkout_seconds" {} (- (System/nanoTime) started))))))]
+    (reify DataSource
+      (getConnection [_]
+        (checkout #(.getConnection ds)))
+      (getConnection [_ user password]
+        (checkout #(.getConnection ds user password)))
+      (getLogWriter [_] (.getLogWriter ds))
+      (setLogWriter [_ out] (.setLogWriter ds out))
+      (getLoginTimeout [_] (.getLoginTimeout ds))
+      (setLoginTimeout [_ seconds] (.setLoginTimeout ds seconds))
+      (getParentLogger [_] (.getParentLogger ds))
+      (unwrap [_ iface] (.unwrap ds iface))
+      (isWrapperFor [_ iface] (.isWrapperFor ds iface)))))
+
+(defn- register-gauges! [metrics ^BoneCPDataSource ds ^AtomicLong waiting]
+  (let [pool-count (fn [f]
+                     #(if-let [^BoneCP pool (.getPool ds)]
+                        (f pool)
+                        0))]
+    (metrics/register-gauge! metrics "db_pool_connections" {:state "active"}
+                             (pool-count #(.getTotalLeased ^BoneCP %)))
+    (metrics/register-gauge! metrics "db_pool_connections" {:state "idle"}
+                             (pool-count #(.getTotalFree ^BoneCP %)))
+    (metrics/register-gauge! metrics "db_pool_connections" {:state "waiting"}
+                             #(.get waiting))))
+
+(defrecord Postgres [db-ref metrics conn pool]
   component/Lifecycle
   (start [self]
     (let [{:keys [subprotocol]} db-ref
           subprotocol (get (map-invert bonecp/default-subproto-map) (str subprotocol) (str subprotocol))
-          db-ref' (assoc db-ref
-                         :classname (bonecp/default-classname-map (str subprotocol))
-                         :username (:user db-ref))
-          ds (bonecp/make-datasource db-ref')]
-      (.setLogStatementsEnabled ds true)
-      (assoc self :conn {:datasource ds})))
+          db-ref' (-> db-ref
+                      (dissoc :pool)
+                      (assoc :classname (bonecp/default-classname-map (str subprotocol))
+                             :username (:user db-ref)))
+          settings (merge pool-defaults (:pool db-ref))
+          ds (configure! (bonecp/make-datasource db-ref') db-ref settings)
+          waiting (AtomicLong.)]
+      (log/info ::pool settings)
+      (register-gauges! metrics ds waiting)
+      (assoc self
+             :pool ds
+             :conn {:datasource (timed-datasource ds metrics waiting)})))
   (stop [self]
-    (when-let [{:keys [datasource]} conn]
-      (.close datasource))
-    (assoc self :conn nil)))
+    (when pool
+      (.close ^BoneCPDataSource pool))
+    (assoc self :conn nil :pool nil)))
 
 (defn postgresql [locator]
   (map->Postgres {:db-ref locator}))
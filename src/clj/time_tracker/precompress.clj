@@ -0,0 +1,64 @@
+(ns time-tracker.precompress
+  "Writes gzip (and, where the brotli command is installed, brotli) copies
+  of the static files beside the compiled ones in target/classes, for
+  time-tracker.assets to serve. Run with `lein precompress` after
+  `lein cljsbuild once prod`."
+  (:require [clojure.java.io :as io]
+            [clojure.java.shell :refer [sh]]
+            [clojure.string :as string]
+            [clojure.tools.logging :as log])
+  (:import [java.io File]
+           [java.util.zip GZIPOutputStream]))
+
+(def ^:private sources ["resources/time_tracker/public" "target/classes/time_tracker/public"])
+(def ^:private target "target/classes/time_tracker/public")
+
+(def ^:private compressible #"\.(js|css|less|svg|html|map|ico)$")
+
+(def ^:private min-size
+  "Files smaller than this aren't worth compressing."
+  1024)
+
+(defn- public-files
+  "[relative-path file] for each file worth compressing under the sources.
+  The compiler's intermediate output in out/prod-js is never served."
+  []
+  (for [source sources
+        :let [root (io/file source)]
+        ^File file (file-seq root)
+        :let [path (-> (.relativize (.toURI root) (.toURI file)) str)]
+        :when (and (.isFile file)
+                   (re-find compressible path)
+                   (not (string/starts-with? path "out/prod-js/"))
+                   (>= (.length file) min-size))]
+    [path file]))
+
+(defn- gzip! [^File in ^File out]
+  (with-open [os (GZIPOutputStream. (io/output-stream out))]
+    (io/copy in os)))
+
+(defn- brotli-available? []
+  (try
+    (zero? (:exit (sh "brotli" "--version")))
+    (catch java.io.IOException _
+      false)))
+
+(defn- brotli! [^File in ^File out]
+  (let [{:keys [exit err]} (sh "brotli" "-q" "11" "-f" "-o" (str out) (str in))]
+    (when-not (zero? exit)
+      (throw (ex-info "brotli failed" {:file (str in) :error err})))))
+
+(defn- write-copy! [compress! ^File in ^File out]
+  (io/make-parents out)
+  (compress! in out)
+  (log/info ::compressed (str out) (.length in) "->" (.length out)))
+
+(defn -main [& _]
+  (let [brotli? (brotli-available?)]
+    (when-not brotli?
+      (println "brotli isn't installed; writing gzip copies only"))
+    (doseq [[path file] (public-files)]
+      (write-copy! gzip! file (io/file target (str path ".gz")))
+      (when brotli?
+        (write-copy! brotli! file (io/file target (str path ".br")))))
+    (shutdown-agents)))
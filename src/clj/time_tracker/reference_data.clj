@@ -0,0 +1,96 @@
+(ns time-tracker.reference-data
+  (:require [com.stuartsierra.component :as component]
+            [clojure.tools.logging :as log]
+            [time-tracker.db-notifications :as notifications]
+            [time-tracker.sql.user :as sql.user])
+  (:import [org.apache.commons.codec.digest DigestUtils]))
+
+;; Holds the projects, activities and users lists in memory. Each kind is
+;; loaded on first use and dropped again whenever something writes to it:
+;; here, or, as a trigger announces every write to the three tables on the
+;; reference_data_changes channel, through another instance or straight in
+;; the database. Everything is dropped whenever the listener (re)starts, as
+;; announcements may have been missed while it was down.
+;; The generation counter stops a load that raced with an invalidation from
+;; putting the stale list back.
+
+(def default-options
+  {:miss-reload-ms 10000})
+
+(defn- view [items]
+  {:items items
+   :etag (DigestUtils/sha1Hex (pr-str items))})
+
+(defn- load-entry [{:keys [conn]} queries]
+  (let [items (vec ((:list queries) {} {:connection conn}))]
+    {:all (view items)
+     :active (view (filterv :active items))
+     :by-name (into {} (map (juxt :name identity)) items)}))
+
+(defn lookup
+  "Returns the cached `{:all view :active view :by-name {name row}}` entry for
+  kind, loading it through the :list query when absent. A view is
+  `{:items [...] :etag ...}`."
+  [{:keys [db lists]} kind queries]
+  (let [{:keys [generation entry]} (get @lists kind)]
+    (or entry
+        (let [entry (load-entry db queries)]
+          (log/debug ::loaded kind :generation generation)
+          (swap! lists
+                 (fn [cached]
+                   (if (= generation (get-in cached [kind :generation]))
+                     (assoc-in cached [kind :entry] entry)
+                     cached)))
+          entry))))
+
+(defn invalidate!
+  "Drops kind from the cache. Call after the write has been committed."
+  [{:keys [lists]} kind]
+  (log/debug ::invalidate kind)
+  (swap! lists update kind
+         (fn [{:keys [generation]}]
+           {:generation (inc (or generation 0))}))
+  nil)
+
+(defn- reload-for-miss!
+  "Drops the users list so that it is reloaded, unless a miss has already
+  done so in the last miss-reload-ms. Returns whether it did."
+  [{:keys [miss-reload-ms miss-reloaded] :as cache}]
+  (let [now (System/nanoTime)
+        last-reload @miss-reloaded]
+    (when (and (or (nil? last-reload)
+                   (>= (- now last-reload) (* miss-reload-ms 1000000)))
+               (compare-and-set! miss-reloaded last-reload now))
+      (invalidate! cache "users")
+      true)))
+
+(defn user
+  "Resolves a user name to its users row (:id, :name, :active), or nil. Users
+  can be added behind the application's back, so a miss reloads the list
+  before giving up; but at most once every miss-reload-ms, so that requests
+  naming users who don't exist can't keep the cache from being used."
+  [cache user-name]
+  (or (get-in (lookup cache "users" sql.user/queries) [:by-name user-name])
+      (when (reload-for-miss! cache)
+        (get-in (lookup cache "users" sql.user/queries) [:by-name user-name]))))
+
+(def ^:private kinds ["projects" "activities" "users"])
+
+(defrecord ReferenceData [db notifications lists miss-reload-ms miss-reloaded]
+  component/Lifecycle
+  (start [self]
+    (let [self (assoc self :lists (atom {}) :miss-reloaded (atom nil))]
+      (notifications/subscribe! notifications "reference_data_changes" ::reference-data
+                                (fn [kind]
+                                  (doseq [kind (if kind [kind] kinds)]
+                                    (invalidate! self kind))))
+      self))
+  (stop [self]
+    (notifications/unsubscribe! notifications "reference_data_changes" ::reference-data)
+    (assoc self :lists nil :miss-reloaded nil)))
+
+(defn instance
+  ([]
+   (instance {}))
+  ([options]
+   (map->ReferenceData (merge default-options options))))
@@ -0,0 +1,143 @@
+(ns time-tracker.report-cache
+  (:require [com.stuartsierra.component :as component]
+            [clojure.tools.logging :as log]
+            [clj-time.coerce :as tc]
+            [clojure.data.json :as json]
+            [time-tracker.db-notifications :as notifications]
+            [time-tracker.metrics :as metrics]
+            [time-tracker.time-changes :as time-changes])
+  (:import [com.google.common.cache Cache CacheBuilder]
+           [java.util.concurrent TimeUnit]))
+
+;; Keeps the rows of recently run Timezilla reports, keyed by the normalised
+;; report query, along with the scope each report covers: its date window
+;; and the users it's limited to. When time is written the reports whose
+;; scope it touches are dropped, and when projects, activities or users are
+;; written all of them are, as their names appear in the rows. Entries also
+;; expire after a while, as the ticket details in them can go stale.
+;;
+;; Writes through this instance are seen as soon as they commit, through
+;; time-tracker.time-changes. Writes through other instances, or straight in
+;; the database, are seen when the triggers' notifications arrive through
+;; time-tracker.db-notifications; whenever those may have been missed,
+;; everything is dropped.
+;;
+;; A report that was being run while a change touching its scope was
+;; published isn't cached, as it may or may not have seen the write.
+;; Reports too big to be worth holding aren't cached either.
+
+(def default-options
+  {:max-entries 200
+   :max-rows 20000
+   :ttl-minutes 30})
+
+(def ^:private day-millis (* 24 60 60 1000))
+
+(defn- overlaps?
+  "Whether the change touches the window. The window's dates are compared
+  with a day's slack either side, as they are cast to dates in the
+  database's time zone."
+  [[window-start window-end] {:keys [start end]}]
+  (and (< (tc/to-long start) (+ (tc/to-long window-end) day-millis))
+       (> (tc/to-long end) (- (tc/to-long window-start) day-millis))))
+
+(defn- touches?
+  "Whether change may alter the rows of a report with scope."
+  [{:keys [window users]} {:keys [reference user-id] :as change}]
+  (or (some? reference)
+      (and (overlaps? window change)
+           (or (nil? users) (contains? users user-id)))))
+
+(defn- invalidate! [{:keys [^Cache cache running]} change]
+  (swap! running (fn [reports]
+                   (into {} (for [[id {:keys [scope] :as report}] reports]
+                              [id (cond-> report
+                                    (touches? scope change) (assoc :stale? true))]))))
+  (let [entries (.asMap cache)]
+    (doseq [[k {:keys [scope]}] entries
+            :when (touches? scope change)]
+      (log/debug ::invalidate k)
+      (.remove entries k))))
+
+(def ^:private everything
+  "A change that touches every report."
+  {:reference :all})
+
+(defn- time-change
+  "The change announced on task_time_changes."
+  [payload]
+  (if payload
+    (let [{:keys [user_id start_time end_time]} (json/read-str payload :key-fn keyword)]
+      {:user-id user_id
+       :start (tc/from-string start_time)
+       :end (tc/from-string end_time)})
+    everything))
+
+(defn- reference-change
+  "The change announced on reference_data_changes, whose payload is the
+  table written to."
+  [payload]
+  (if payload
+    {:reference payload}
+    everything))
+
+(defn through
+  "Calls emit! with each row of the report identified by k, from the cache
+  if it's there and otherwise from (produce! emit!), caching the rows
+  produced when it can. scope is the report's `{:window [start end]
+  :users #{id}}`, with the window as SQL dates and users nil for everyone.
+  Without a cache this is just (produce! emit!)."
+  [{:keys [^Cache cache running max-rows metrics]} k scope produce! emit!]
+  (if-not cache
+    (produce! emit!)
+    (if-let [{:keys [rows]} (.getIfPresent cache k)]
+      (do
+        (metrics/inc! metrics "timezilla_cache_requests_total" {:result "hit"})
+        (run! emit! rows))
+      (let [id (Object.)
+            kept (volatile! [])]
+        (metrics/inc! metrics "timezilla_cache_requests_total" {:result "miss"})
+        (swap! running assoc id {:scope scope})
+        (try
+          (produce! (fn [row]
+                      (when-let [rows @kept]
+                        (vreset! kept (when (< (count rows) max-rows)
+                                        (conj rows row))))
+                      (emit! row)))
+          (when (and @kept (not (get-in @running [id :stale?])))
+            (.put cache k {:scope scope :rows @kept})
+            ;; invalidate! marks running reports before dropping entries,
+            ;; so a change that slipped in before the put is caught here.
+            (when (get-in @running [id :stale?])
+              (.invalidate cache k)))
+          (finally
+            (swap! running dissoc id)))))))
+
+(defrecord ReportCache [max-entries max-rows ttl-minutes time-changes notifications metrics cache running]
+  component/Lifecycle
+  (start [self]
+    (let [self (assoc self
+                      :cache (-> (CacheBuilder/newBuilder)
+                                 (.maximumSize (long max-entries))
+                                 (.expireAfterWrite (long ttl-minutes) TimeUnit/MINUTES)
+                                 (.build))
+                      :running (atom {}))]
+      (time-changes/subscribe! time-changes ::report-cache (partial invalidate! self))
+      (notifications/subscribe! notifications "task_time_changes" ::report-cache
+                                #(invalidate! self (time-change %)))
+      (notifications/subscribe! notifications "reference_data_changes" ::report-cache
+                                #(invalidate! self (reference-change %)))
+      (metrics/register-gauge! metrics "timezilla_cache_entries" {} #(.size ^Cache (:cache self)))
+      self))
+  (stop [self]
+    (when time-changes
+      (time-changes/unsubscribe! time-changes ::report-cache))
+    (notifications/unsubscribe! notifications "task_time_changes" ::report-cache)
+    (notifications/unsubscribe! notifications "reference_data_changes" ::report-cache)
+    (assoc self :cache nil :running nil)))
+
+(defn instance
+  ([]
+   (instance {}))
+  ([options]
+   (map->ReportCache (merge default-options options))))
@@ -1,10 +1,13 @@
 (ns time-tracker.ring-composite
   (:require  [com.stuartsierra.component :as component]
              [ring.middleware.params :refer [wrap-params]]
+             [time-tracker.metrics :as metrics]
              [time-tracker.ring :as ring]
              [clojure.tools.logging :as log]))
 
-(defrecord OverlaidHandlers [order]
+;; When the system has a :metrics component the composite handler records
+;; every request in it.
+(defrecord OverlaidHandlers [order metrics]
   ring/RingRequestHandler
   (request-handler [self]
     (when-let [invalid-handlers (seq (filter #(not (satisfies? ring/RingRequestHandler (get self %))) order))]
@@ -13,8 +16,9 @@
                        :invalid-handlers (select-keys self invalid-handlers)})))
     (let [children (map #(get self %) order)
           handlers (map ring/request-handler children)]
-      (fn [req]
-        (some #(% req) handlers)))))
+      (cond-> (fn [req]
+                (some #(% req) handlers))
+        metrics (metrics/wrap-metrics metrics)))))
 
 (defn overlay [ordering]
   (map->OverlaidHandlers {:order ordering}))
@@ -0,0 +1,52 @@
+(ns time-tracker.rollup
+  "Checks and rebuilds task_time_daily, the per user, task and day totals
+  that a trigger on task_time keeps up to date for the reports and graphs.
+  Run with `lein rollup verify` or `lein rollup rebuild`."
+  (:require [com.stuartsierra.component :as component]
+            [clojure.tools.logging :as log]
+            [yesql.core :refer [defquery]]
+            [time-tracker.db-env :refer [db-from-env]]
+            [time-tracker.migrator :as migrator]
+            [time-tracker.postgresql :as postgresql]))
+
+(defquery query-discrepancies "sql/query-task-time-daily-discrepancies.sql")
+(defquery rebuild-task-time-daily "sql/rebuild-task-time-daily.sql")
+
+(defn discrepancies
+  "The (user, task, day)s whose totals in task_time_daily differ from the
+  entries in task_time, with both sides' minutes and entry counts."
+  [{:keys [conn]}]
+  (query-discrepancies {} {:connection conn}))
+
+(defn rebuild!
+  "Recomputes task_time_daily from task_time, blocking writes to task_time
+  while it does. Returns the number of rows written."
+  [{:keys [conn]}]
+  (-> (rebuild-task-time-daily {} {:connection conn}) first :rows))
+
+(defn- rollup-system []
+  (component/system-map
+   :db (postgresql/postgresql (db-from-env))
+   :migrator (component/using (migrator/instance) [:db])))
+
+(defn -main [& [command]]
+  (let [system (component/start (rollup-system))
+        db (:db system)
+        status (try
+                 (case command
+                   "verify" (let [found (discrepancies db)]
+                              (doseq [row found]
+                                (println row))
+                              (println (count found) "discrepancies")
+                              (if (seq found) 1 0))
+                   "rebuild" (do
+                               (println "Rebuilt task_time_daily with" (rebuild! db) "rows")
+                               0)
+                   (do
+                     (println "Usage: lein rollup verify|rebuild")
+                     2))
+                 (finally
+                   (component/stop system)))]
+    (log/info ::done command status)
+    (shutdown-agents)
+    (System/exit status)))
@@ -0,0 +1,39 @@
+(ns time-tracker.task-cache
+  (:require [com.stuartsierra.component :as component])
+  (:import [com.google.common.cache Cache CacheBuilder]))
+
+;; Remembers the ids of recently used tasks by their details, so that saving
+;; time against a task somebody used a moment ago doesn't need the database.
+;; Task rows are never changed once written, so entries only go stale when
+;; the tasks table itself is emptied, as the tests do; clear! is for then.
+
+(def default-size 10000)
+
+(defn task-id
+  "Returns the id cached for details, calling (load!) and remembering its
+  result on a miss. Concurrent misses may both load; the insert behind
+  load! makes that harmless."
+  [{:keys [^Cache cache]} details load!]
+  (or (.getIfPresent cache details)
+      (let [id (load!)]
+        (.put cache details id)
+        id)))
+
+(defn clear! [{:keys [^Cache cache]}]
+  (when cache
+    (.invalidateAll cache)))
+
+(defrecord TaskCache [size cache]
+  component/Lifecycle
+  (start [self]
+    (assoc self :cache (-> (CacheBuilder/newBuilder)
+                           (.maximumSize (long size))
+                           (.build))))
+  (stop [self]
+    (assoc self :cache nil)))
+
+(defn instance
+  ([]
+   (instance default-size))
+  ([size]
+   (map->TaskCache {:size size})))
@@ -0,0 +1,70 @@
+(ns time-tracker.tickets
+  (:require [com.stuartsierra.component :as component]
+            [clojure.tools.logging :as log]
+            [time-tracker.timezilla-data :as td])
+  (:import [com.google.common.cache Cache CacheBuilder]
+           [java.util.concurrent ExecutorService Executors Future TimeUnit TimeoutException]))
+
+;; Looks up the tracker tickets behind a report's bugs. Each distinct
+;; (tracker-url, bug) pair is fetched once per report on a fixed pool of
+;; threads, and successful lookups are kept for a while so that re-running a
+;; report doesn't go back to the tracker at all. Failed lookups aren't kept.
+
+(def default-options
+  {:threads 8
+   :ttl-minutes 10
+   :max-entries 10000
+   :timeout-ms 2000
+   :deadline-ms 10000})
+
+(defn- fetch [{:keys [^Cache cache timeout-ms]} [tracker-url bug :as k]]
+  (let [details (td/ticket-details tracker-url bug {:socket-timeout timeout-ms
+                                                   :conn-timeout timeout-ms})]
+    (when-not (= td/no-ticket details)
+      (.put cache k details))
+    details))
+
+(defn lookup-all
+  "Returns a map of [tracker-url bug] to ticket details for every row that
+  has both. Lookups still outstanding deadline-ms after the call are
+  reported as td/no-ticket."
+  [{:keys [^Cache cache ^ExecutorService pool deadline-ms] :as tickets} rows]
+  (let [wanted (->> rows
+                    (keep (fn [{:keys [tracker_url bug]}]
+                            (when (and tracker_url bug)
+                              [tracker_url bug])))
+                    distinct)
+        cached (into {} (keep #(when-let [details (.getIfPresent cache %)] [% details])) wanted)
+        misses (remove cached wanted)
+        futures (doall (for [k misses]
+                         [k (.submit pool ^Callable #(fetch tickets k))]))
+        deadline (+ (System/currentTimeMillis) deadline-ms)]
+    (log/debug ::lookup-all :wanted (count wanted) :cached (count cached))
+    (into cached
+          (for [[k ^Future f] futures]
+            [k (try
+                 (.get f (max 0 (- deadline (System/currentTimeMillis))) TimeUnit/MILLISECONDS)
+                 (catch TimeoutException e
+                   (.cancel f true)
+                   (log/warn ::lookup-timed-out k)
+                   td/no-ticket))]))))
+
+(defrecord Tickets [threads ttl-minutes max-entries timeout-ms deadline-ms cache pool]
+  component/Lifecycle
+  (start [self]
+    (assoc self
+           :cache (-> (CacheBuilder/newBuilder)
+                      (.maximumSize (long max-entries))
+                      (.expireAfterWrite (long ttl-minutes) TimeUnit/MINUTES)
+                      (.build))
+           :pool (Executors/newFixedThreadPool threads)))
+  (stop [self]
+    (when pool
+      (.shutdownNow ^ExecutorService pool))
+    (assoc self :cache nil :pool nil)))
+
+(defn instance
+  ([]
+   (instance {}))
+  ([options]
+   (map->Tickets (merge default-options options))))
@@ -0,0 +1,41 @@
+(ns time-tracker.time-changes
+  (:require [com.stuartsierra.component :as component]
+            [clojure.tools.logging :as log]))
+
+;; Tells anything holding data derived from task_time that some of it has
+;; changed. TimeService publishes a change once the write behind it has
+;; committed; a change is `{:user-id id :start instant :end instant}` covering
+;; the time that was written, trimmed or cleared, or `{:reference kind}` when
+;; one of the projects, activities or users has been renamed or removed.
+
+(defn subscribe!
+  "Calls (f change) for every change published from now on, until
+  unsubscribe! is called with the same key."
+  [{:keys [listeners]} key f]
+  (swap! listeners assoc key f)
+  nil)
+
+(defn unsubscribe! [{:keys [listeners]} key]
+  (swap! listeners dissoc key)
+  nil)
+
+(defn publish!
+  "Hands change to each listener in turn. A listener that throws is logged
+  and doesn't stop the others, nor fail the write that caused the change."
+  [changes change]
+  (when changes
+    (doseq [[key f] @(:listeners changes)]
+      (try
+        (f change)
+        (catch Exception e
+          (log/error e ::listener-failed key change))))))
+
+(defrecord TimeChanges [listeners]
+  component/Lifecycle
+  (start [self]
+    (assoc self :listeners (atom {})))
+  (stop [self]
+    (assoc self :listeners nil)))
+
+(defn instance []
+  (map->TimeChanges {}))
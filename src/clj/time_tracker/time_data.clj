@@ -15,98 +15,156 @@
              [clj-time.format :as f]
              [clj-time.coerce :as tc]
              [clojure.tools.logging :as log]
+             [time-tracker.task-cache :as task-cache]
              [time-tracker.db-types]))
 
-(defquery insert-task<! "sql/insert-task.sql")
-(defquery task-by-details "sql/query-task-by-details.sql")
-(defquery query-task-time-by-user-period "sql/query-task-time-by-user-period.sql")
+(defquery upsert-task "sql/upsert-task.sql")
+(defquery query-task-by-details "sql/query-task-by-details.sql")
+(defquery query-tasks-for-period "sql/query-tasks-for-period.sql")
 (defquery insert-time! "sql/insert-time.sql")
 (defquery update-task-time! "sql/update-task-time-id.sql")
 (defquery query-existing-task-time "sql/query-existing-task-time.sql")
-(defquery query-conflicting-task-time "sql/query-conflicting-task-time.sql")
+(defquery remove-conflicting-task-time "sql/remove-conflicting-task-time.sql")
 (defquery delete-task-time! "sql/delete-task-time.sql")
-(defquery update-task-time-interval! "sql/update-task-time-interval.sql")
-(defquery query-recent-tasks-by-user "sql/query-recent-tasks-by-user.sql")
-(defquery is-active-user? "sql/is-active-user.sql")
+(defquery query-user-day-versions "sql/query-user-day-versions.sql")
+(defquery query-existing-task-ids "sql/query-existing-task-ids.sql")
 
 (defn joda-from-sql [^java.sql.Timestamp ts]
   (when-not (nil? ts)
     (tc/from-long (.getTime ts))))
 
-(defn- parse-sql-date-times [row]
-  (cond-> row
-    (:start_time row) (update-in [:start_time] joda-from-sql)
-    (:start_time row) (update-in [:end_time] joda-from-sql)))
-
-(defn with-defaults [item defaults]
-  (merge defaults item))
-
-(defn ensure-task! [{:keys [conn] :as db}
-                    task]
-  (let [{:keys [project_id activity_id bug description]}
-        (with-defaults task {:bug "" :description ""})]
-    (j/with-db-transaction [trans conn {:isolation :serializable}]
-      (if-let [rows (seq (task-by-details {:project_id project_id :activity_id activity_id :bug bug :description description} {:connection trans}))]
-        (-> rows first :id)
-        (let [row (insert-task<! {:project_id project_id :activity_id activity_id :bug bug :description description} {:connection trans})]
-          (:id row))))))
-
-(defn- match-ordering [[start_match end_match] [start_ord end_ord]]
-  (and (start_match start_ord) (end_match end_ord)))
-
-(defn remove-conflicts [trans user start_time end_time]
-  (log/info ::remove-conflicts [user start_time end_time])
-  (doseq [row (->> (query-conflicting-task-time {:start_time start_time :end_time end_time :user_name user} {:connection trans})
-                   (map parse-sql-date-times))]
-    (log/info ::conflicting! row)
-    (condp match-ordering
-           [(compare (:start_time row) start_time) (compare (:end_time row) end_time)]
-      [#{0 1} #{-1 0}]
-      (delete-task-time! {:task_time_id (:id row)} {:connection trans})
-      [#{-1 0} #{-1 0}]
-      (update-task-time-interval! {:start_time (:start_time row) :end_time start_time :task_id (:id row)} {:connection trans})
-      [#{0 1} #{0 1}]
-      (update-task-time-interval! {:start_time end_time :end_time (:end_time row) :task_id (:id row)} {:connection trans})
-      [#{-1} #{1}]
-      (do
-        (log/info ::splitting row :with start_time end_time)
-        (update-task-time-interval! {:start_time (:start_time row) :end_time start_time :task_id (:id row)} {:connection trans})
-        (insert-time! {:task_id (:task_id row) :start_time end_time :end_time (:end_time row) :user_name user} {:connection trans})))))
-
-(defn record-time! [{:keys [conn]} id user start_time end_time]
-  (j/with-db-transaction [trans conn {:isolation :serializable}]
-    (remove-conflicts trans user start_time end_time)
-    (when-let [existing-task (first (query-existing-task-time {:start_time start_time :end_time end_time :user_name user} {:connection trans}))]
-      (let [deleted-time-count (delete-task-time! {:task_time_id (:id existing-task)} {:connection trans})]
-        (when-not (= 1 deleted-time-count)
-          (throw (ex-info "Expected to only delete one time entry" {:count deleted-time-count})))))
-    (insert-time! {:task_id id :start_time start_time :end_time end_time :user_name user} {:connection trans})))
+(defn ensure-task!
+  "Returns the id of the task with these details, creating it if need be.
+  Recently used tasks come from the task cache; otherwise the row is
+  inserted unless the unique details index already holds it, in which case
+  it is looked up. Concurrent saves of the same task don't fail, and an
+  existing task isn't rewritten."
+  [{:keys [conn] :as db} tasks task]
+  (let [details (-> (select-keys task [:project_id :activity_id :bug :description])
+                    (update :bug #(or % ""))
+                    (update :description #(or % "")))]
+    (task-cache/task-id tasks details
+                        #(or (-> (upsert-task details {:connection conn}) first :id)
+                             (-> (query-task-by-details details {:connection conn}) first :id)))))
 
-(defn migrate-time-period! [{:keys [conn]} id new-id user start_time end_time]
-  (update-task-time! {:new_task_id new-id :old_task_id id :start_time start_time :end_time end_time :user_name user} {:connection conn}))
+(defn remove-conflicts
+  "Clears the user's time between start_time and end_time in a single
+  statement, however many entries overlap it. Entries lying inside the
+  interval are deleted, ones overhanging either end are trimmed back to it,
+  and one covering the whole interval is trimmed to the part before it with a
+  copy inserted for the part after."
+  [trans user-id start_time end_time]
+  (let [counts (first (remove-conflicting-task-time {:start_time start_time :end_time end_time :user_id user-id} {:connection trans}))]
+    (log/info ::remove-conflicts [user-id start_time end_time] counts)
+    counts))
 
-(defn mark-time-idle! [{:keys [conn]} user start_time end_time]
-  (j/with-db-transaction [trans conn {:isolation :serializable}]
-    (remove-conflicts trans user start_time end_time)))
+(defn- record-time-in! [trans id user-id start_time end_time]
+  (remove-conflicts trans user-id start_time end_time)
+  (when-let [existing-task (first (query-existing-task-time {:start_time start_time :end_time end_time :user_id user-id} {:connection trans}))]
+    (let [deleted-time-count (delete-task-time! {:task_time_id (:id existing-task)} {:connection trans})]
+      (when-not (= 1 deleted-time-count)
+        (throw (ex-info "Expected to only delete one time entry" {:count deleted-time-count})))))
+  (insert-time! {:task_id id :start_time start_time :end_time end_time :user_id user-id} {:connection trans}))
+
+(declare list-tasks-in)
+
+(defn- listing
+  "The time sheet for sheet, [user-id start end previous-task-period] as
+  taken by list-tasks-between, read in trans; nil without a sheet."
+  [trans sheet]
+  (when sheet
+    (apply list-tasks-in trans sheet)))
+
+;; The writes below each take an optional sheet, and return that time sheet
+;; as the write leaves it, so that a client needn't fetch it separately.
+
+(defn record-time!
+  ([db id user-id start_time end_time]
+   (record-time! db id user-id start_time end_time nil))
+  ([{:keys [conn]} id user-id start_time end_time sheet]
+   (j/with-db-transaction [trans conn {:isolation :serializable}]
+     (record-time-in! trans id user-id start_time end_time)
+     (listing trans sheet))))
+
+(defn existing-task-ids
+  "The set of ids that name tasks."
+  [{:keys [conn]} ids]
+  (if (seq ids)
+    (set (map :id (query-existing-task-ids {:ids ids} {:connection conn})))
+    #{}))
 
-(defn list-tasks-between [{:keys [conn] :as db} user start end previous-task-period]
+(defn record-times!
+  "Records each of `entries` (maps of :task_id, :start_time and :end_time)
+  for the user in order, all in the one transaction. Later entries win where
+  they overlap earlier ones, as if they had been posted one after another."
+  [{:keys [conn]} user-id entries]
   (j/with-db-transaction [trans conn {:isolation :serializable}]
-    (let [task-cols [:id :project_id :activity_id :bug :description]
-          key-fn (apply juxt task-cols)
-          current-time (query-task-time-by-user-period {:user_name user :start_time start :end_time end} {:connection trans})
-          recent-tasks (query-recent-tasks-by-user {:user_name user :start_time (t/minus start previous-task-period) :end_time start} {:connection trans})
-          grouped (->> (concat current-time recent-tasks)
-                       (map parse-sql-date-times)
-                       (group-by key-fn))]
-      (log/info ::current-time current-time ::recent recent-tasks)
-      (for [[task-info times] grouped]
-        (let [task-time (->> times
-                             (map #(select-keys % [:start_time :end_time]))
-                             (filter (comp not empty?)))]
-          (-> (zipmap task-cols task-info)
-              (assoc :times task-time)))))))
-
-(defn active-user? [{:keys [conn] :as db} user-name]
-  (-> (is-active-user? {:user_name user-name} {:connection conn})
-      first
-      :activep))
+    (doseq [{:keys [task_id start_time end_time]} entries]
+      (record-time-in! trans task_id user-id start_time end_time))))
+
+(defn migrate-time-period!
+  ([db id new-id user-id start_time end_time]
+   (migrate-time-period! db id new-id user-id start_time end_time nil))
+  ([{:keys [conn]} id new-id user-id start_time end_time sheet]
+   (j/with-db-transaction [trans conn]
+     (update-task-time! {:new_task_id new-id :old_task_id id :start_time start_time :end_time end_time :user_id user-id} {:connection trans})
+     (listing trans sheet))))
+
+(defn mark-time-idle!
+  ([db user-id start_time end_time]
+   (mark-time-idle! db user-id start_time end_time nil))
+  ([{:keys [conn]} user-id start_time end_time sheet]
+   (j/with-db-transaction [trans conn {:isolation :serializable}]
+     (remove-conflicts trans user-id start_time end_time)
+     (listing trans sheet))))
+
+(def ^:private task-cols [:id :project_id :activity_id :bug :description])
+
+(defn- add-task-row
+  "Folds one row of query-tasks-for-period into the tasks seen so far. Rows
+  for recently used tasks carry no times and only make sure the task is
+  listed."
+  [{:keys [tasks] :as acc} {:keys [id start_time end_time] :as row}]
+  (cond-> acc
+    (not (contains? tasks id))
+    (-> (update :order conj id)
+        (assoc-in [:tasks id] (assoc (select-keys row task-cols) :times [])))
+    start_time
+    (update-in [:tasks id :times] conj {:start_time (joda-from-sql start_time)
+                                        :end_time (joda-from-sql end_time)})))
+
+(defn list-tasks-in
+  "As list-tasks-between, on an open connection or transaction."
+  [trans user-id start end previous-task-period]
+  (let [{:keys [order tasks]} (reduce add-task-row
+                                      {:order [] :tasks {}}
+                                      (query-tasks-for-period {:user_id user-id
+                                                               :start_time start
+                                                               :end_time end
+                                                               :recent_start_time (t/minus start previous-task-period)}
+                                                              {:connection trans}))]
+    (map tasks order)))
+
+(defn time-sheet-version
+  "Identifies the state of what list-tasks-between would return, from the
+  versions a trigger keeps for every user and day that time is written to,
+  as {:version string :changed-at DateTime}. The version moves on with any
+  write to the user's time in the period. changed-at is nil for a period
+  that has never been written to."
+  [{:keys [conn] :as db} user-id start end previous-task-period]
+  (let [{:keys [version days changed_at]}
+        (first (query-user-day-versions {:user_id user-id
+                                         :start_time (t/minus start previous-task-period)
+                                         :end_time end}
+                                        {:connection conn}))]
+    {:version (format "%d-%d" version days)
+     :changed-at (joda-from-sql changed_at)}))
+
+(defn list-tasks-between
+  "Lists the user's tasks with their times between start and end, followed
+  by tasks used in the previous-task-period before start with no times.
+  Both come from one statement, read in a repeatable-read transaction so
+  that they stay one snapshot should the listing take more statements."
+  [{:keys [conn] :as db} user-id start end previous-task-period]
+  (j/with-db-transaction [trans conn {:read-only? true :isolation :repeatable-read}]
+    (list-tasks-in trans user-id start end previous-task-period)))
@@ -0,0 +1,112 @@
+(ns time-tracker.time-events
+  (:require [com.stuartsierra.component :as component]
+            [compojure.core :refer [GET]]
+            [ring.middleware.params :refer [wrap-params]]
+            [ring.middleware.keyword-params :refer [wrap-keyword-params]]
+            [clojure.data.json :as json]
+            [clojure.tools.logging :as log]
+            [clj-time.coerce :as tc]
+            [clj-time.format :as f]
+            [time-tracker.db-notifications :as notifications]
+            [time-tracker.metrics :as metrics]
+            [time-tracker.reference-data :as reference-data]
+            [time-tracker.ring :as ring])
+  (:import [java.io IOException OutputStream]
+           [java.util.concurrent LinkedBlockingQueue TimeUnit]))
+
+;; Streams changes to a user's time to their open time sheets as Server-Sent
+;; Events on /time/events?user=name. A trigger on task_time announces each
+;; entry removed or added on the task_time_changes channel once its write
+;; commits, whichever instance made it, and time-tracker.db-notifications
+;; hands each change to the streams open for that user.
+;;
+;; A stream's body is a function that time-tracker.jetty calls with the
+;; response's OutputStream. It writes and flushes each event as it comes,
+;; and a comment every keepalive-ms between them. Once the client has gone
+;; away a write fails, which ends the stream and frees its thread.
+
+(def default-options
+  {:keepalive-ms 15000
+   :queue-size 1000})
+
+(defn- subscribe! [{:keys [subscribers]} user-id subscriber]
+  (swap! subscribers update user-id (fnil conj #{}) subscriber))
+
+(defn- unsubscribe! [{:keys [subscribers]} user-id subscriber]
+  (swap! subscribers (fn [by-user]
+                       (let [remaining (disj (get by-user user-id) subscriber)]
+                         (if (empty? remaining)
+                           (dissoc by-user user-id)
+                           (assoc by-user user-id remaining))))))
+
+(defn- iso-time [s]
+  (f/unparse (f/formatters :date-time) (tc/from-string s)))
+
+(defn- parse-change [payload]
+  (-> (json/read-str payload :key-fn keyword)
+      (update :start_time iso-time)
+      (update :end_time iso-time)))
+
+(defn- dispatch! [{:keys [subscribers]} payload]
+  (let [{:keys [user_id] :as change} (parse-change payload)]
+    (doseq [{:keys [^LinkedBlockingQueue queue]} (get @subscribers user_id)]
+      (when-not (.offer queue (dissoc change :user_id))
+        (log/warn ::stream-queue-full user_id)))))
+
+(defn- event-text [change]
+  (str "event: time\ndata: " (json/write-str change) "\n\n"))
+
+(defn- write-events!
+  "Writes the subscriber's events to out until a write fails, then
+  unsubscribes it."
+  [{:keys [keepalive-ms] :as events} user-id {:keys [^LinkedBlockingQueue queue] :as subscriber}
+   ^OutputStream out]
+  (try
+    (loop [^String text ": connected\n\n"]
+      (.write out (.getBytes text "UTF-8"))
+      (.flush out)
+      (let [change (.poll queue keepalive-ms TimeUnit/MILLISECONDS)]
+        (recur (if change (event-text change) ": keepalive\n\n"))))
+    (catch IOException e
+      (log/debug ::stream-closed user-id))
+    (finally
+      (unsubscribe! events user-id subscriber))))
+
+(defn events-response
+  "The event stream of changes to user-id's time from now on."
+  [{:keys [queue-size] :as events} user-id]
+  (let [subscriber {:queue (LinkedBlockingQueue. (int queue-size))}]
+    (subscribe! events user-id subscriber)
+    {:status 200
+     :headers {"Content-Type" "text/event-stream; charset=utf-8"
+               "Cache-Control" "no-cache"
+               "X-Accel-Buffering" "no"}
+     :body (partial write-events! events user-id subscriber)}))
+
+(defrecord TimeEvents [reference-data notifications metrics keepalive-ms queue-size subscribers]
+  component/Lifecycle
+  (start [self]
+    (let [self (assoc self :subscribers (atom {}))]
+      (notifications/subscribe! notifications "task_time_changes" ::time-events
+                                #(some->> % (dispatch! self)))
+      (metrics/register-gauge! metrics "time_event_streams" {}
+                               #(reduce + (map count (vals @(:subscribers self)))))
+      self))
+  (stop [self]
+    (notifications/unsubscribe! notifications "task_time_changes" ::time-events)
+    (assoc self :subscribers nil))
+
+  ring/RingRequestHandler
+  (request-handler [self]
+    (-> (GET "/time/events" [user]
+          (if-let [user-id (:id (reference-data/user reference-data user))]
+            (events-response self user-id)
+            {:status 404 :body "No such user"}))
+        wrap-keyword-params
+        wrap-params)))
+
+(defn instance
+  ([]
+   (instance {}))
+  ([options]
+   (map->TimeEvents (merge default-options options))))
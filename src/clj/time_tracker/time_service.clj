@@ -23,6 +23,9 @@
    [time-tracker.sql.project :as sql.project]
    [time-tracker.sql.user :as sql.user]
    [time-tracker.time-data :as data]
+   [time-tracker.reference-data :as reference-data]
+   [time-tracker.time-changes :as time-changes]
+   [time-tracker.assets :as assets]
    [time-tracker.build-version :as vers]
    [schema.core :as s]
    [net.cgrand.enlive-html :as html]
@@ -67,7 +70,17 @@
 ; "409 Conflict" on POST commands directly. Instead we push it down the
 ; PUT route for POSTs. This might be revisitable once
 ; https://github.com/clojure-liberator/liberator/pull/246 gets merged
-(defn plain-list-resource [db kind queries]
+(defn- get-request? [ctx]
+  (= (-> ctx :request :request-method) :get))
+
+(defn- must-revalidate
+  "Lets browsers keep a response but has them check its ETag before each use."
+  [handler]
+  (fn [request]
+    (when-let [response (handler request)]
+      (header response "Cache-Control" "no-cache"))))
+
+(defn plain-list-resource [db cache kind queries]
   (resource
    :allowed-methods [:post :get]
    :available-media-types ["application/json"]
@@ -77,15 +90,18 @@
                                     {(s/optional-key :type) (s/named (s/cond-pre (s/eq "all") (s/eq "active")) "all or active")})
                    (invalid-params? ctx
                                     {(s/required-key :name) s/Str})))
-   :exists? true
-   :handle-ok (fn [ctx]
+   :exists? (fn [ctx]
+              (if (get-request? ctx)
                 (let [qp (-> ctx :request :query-params keywordize-keys)
                       typ (keyword (or (:type qp) "active"))
-                      items ((:list queries) {} {:connection (:conn db)})]
-                  (condp = typ
-                    :active (filter #(:active %) items)
-                    :all items
-                    (throw (Exception. "Validation failed, should be all or active")))))
+                      entry (reference-data/lookup cache kind queries)]
+                  {::view (or (get entry typ)
+                              (throw (Exception. "Validation failed, should be all or active")))})
+                true))
+   :etag (fn [ctx]
+           (get-in ctx [::view :etag]))
+   :handle-ok (fn [ctx]
+                (get-in ctx [::view :items]))
    :handle-exception handle-exception
    :handle-malformed handle-malformed
 
@@ -101,9 +117,10 @@
    :put! (fn [ctx]
            (let [params (get-in ctx [:request :params])
                  result ((:create queries) params {:connection (:conn db)})]
+             (reference-data/invalidate! cache kind)
              {:location (format "/%s/%s" kind (:id result))}))))
 
-(defn plain-entry-resource [db kind queries id]
+(defn plain-entry-resource [db cache changes kind queries id]
   (resource
    :allowed-methods [:get :put :delete]
    :available-media-types ["application/json"]
@@ -123,9 +140,13 @@
    :handle-malformed handle-malformed
    :new? false
    :put! (fn [ctx]
-           ((:update queries) (merge (get-in ctx [:request :params]) {:id id}) {:connection (:conn db)}))
+           ((:update queries) (merge (get-in ctx [:request :params]) {:id id}) {:connection (:conn db)})
+           (reference-data/invalidate! cache kind)
+           (time-changes/publish! changes {:reference kind}))
    :delete! (fn [ctx]
-              ((:delete queries) {:id id} {:connection (:conn db)}))
+              ((:delete queries) {:id id} {:connection (:conn db)})
+              (reference-data/invalidate! cache kind)
+              (time-changes/publish! changes {:reference kind}))
    :handle-no-content (fn [ctx]
                         (if (contains? ctx :error)
                           (ring-response {:status 400 :body (json/write-str {:error (:error ctx)})})))
@@ -154,9 +175,42 @@
         (let [req (->> params (map form-value-fn) (into {}))]
           [false {key req}])))))
 
+(defn- user-id
+  "Resolves a user name to its id through the reference-data cache."
+  [cache user-name]
+  (:id (reference-data/user cache user-name)))
+
+(defn- active-user-id
+  "As user-id, but nil unless the user is active."
+  [cache user-name]
+  (let [{:keys [id active]} (reference-data/user cache user-name)]
+    (when active
+      id)))
+
+(defn- day-start [yyyy-mm-dd]
+  (f/parse (f/formatters :date) yyyy-mm-dd))
+
 (defn is-migrate-request? [{:keys [id]}]
   (not (nil? id)))
 
+(def datetime-re #"^\d{4}-\d\d-\d\dT\d\d\:\d\d\:\d\d.\d\d\d(\+\d\d:\d\d|Z)$")
+
+(def TimeSheetReturn
+  "Optional on every write to time: with both timesheet_start and
+  timesheet_end the response carries the writer's time sheet for that
+  period, as GET /time would list it, read in the write's transaction."
+  {(s/optional-key :timesheet_start) datetime-re
+   (s/optional-key :timesheet_end) datetime-re
+   (s/optional-key :recent_hours) #"^\d+$"})
+
+(defn- time-sheet-period
+  "The period to list for the writer, as taken by data/list-tasks-between,
+  or nil when the request didn't ask for its time sheet."
+  [user-id {:keys [timesheet_start timesheet_end recent_hours]}]
+  (when (and user-id timesheet_start timesheet_end)
+    [user-id (parse-time timesheet_start) (parse-time timesheet_end)
+     (t/hours (Integer/parseInt (or recent_hours "0")))]))
+
 (def TaskData
   {:project_id #"^\d+$"
    :activity_id #"^\d+$"
@@ -165,21 +219,23 @@
 
 (def MoveData
   (merge TaskData
+         TimeSheetReturn
          {:start #"^\d+-\d+-\d+$"
           :end #"^\d+-\d+-\d+$"
           :id #"^\d+$"
           :user s/Str}))
 
 (def DeleteData
-  {:start_time s/Str ;; ISO8601
-   :end_time s/Str
-   :user s/Str})
+  (merge TimeSheetReturn
+         {:start_time s/Str ;; ISO8601
+          :end_time s/Str
+          :user s/Str}))
 
 (def schemas-by-method
   {:post (s/either TaskData MoveData)
    :delete DeleteData})
 
-(defn time-base [db]
+(defn time-base [db cache tasks changes]
   (resource
    :available-media-types ["application/json"]
    :allowed-methods [:post :get :delete]
@@ -188,41 +244,74 @@
    :post! (fn time-base:post! [ctx]
             (log/info ::time-base:post! (::data ctx))
             (let [task-info (::data ctx)
-                  new-id (data/ensure-task! db task-info)]
-              (when (is-migrate-request? task-info)
-                (let [{:keys [id user start end]} task-info]
-                  (log/info ::time-base:migrate user start end)
-                  (data/migrate-time-period! db (Integer/parseInt id) new-id user start end)))
-              {:location (format "/time/%d" new-id)}))
+                  new-id (data/ensure-task! db tasks task-info)
+                  migrated (when (is-migrate-request? task-info)
+                             (let [{:keys [id user start end]} task-info]
+                               (log/info ::time-base:migrate user start end)
+                               (when-let [user-id (user-id cache user)]
+                                 (let [sheet (time-sheet-period user-id task-info)
+                                       listed (data/migrate-time-period! db (Integer/parseInt id) new-id user-id start end sheet)]
+                                   (time-changes/publish! changes {:user-id user-id :start (day-start start) :end (day-start end)})
+                                   (when sheet
+                                     {::time-sheet listed})))))]
+              (merge {:location (format "/time/%d" new-id)} migrated)))
 
    :handle-malformed
    (fn [{:keys [validation-failure]}]
      (pr-str {:validation-failure validation-failure}))
+   ;; GETs are answered from the period's version where possible, so an
+   ;; unchanged time sheet costs a single small lookup.
+   :exists?
+   (fn time-base:exists? [ctx]
+     (if (get-request? ctx)
+       (let [{:strs [user start end recent_hours]} (get-in ctx [:request :query-params])
+             period [(user-id cache user) (parse-date start) (parse-date end) (t/hours (Integer/parseInt recent_hours))]]
+         {::period period
+          ::version (when (first period)
+                      (apply data/time-sheet-version db period))})
+       true))
+   :etag (fn [{:keys [::version]}]
+           (:version version))
+   :last-modified (fn [{:keys [::version]}]
+                    (some-> version :changed-at tc/to-date))
+   ;; Writes within the same second share a Last-Modified, so a client that
+   ;; sent an ETag which didn't match must not be told its copy is current.
+   :modified-since? (fn [{:keys [request ::version] :as ctx}]
+                      (or (contains? (:headers request) "if-none-match")
+                          (let [changed (some-> version :changed-at tc/to-date)
+                                since (:liberator.core/if-modified-since-date ctx)]
+                            (boolean (and changed since (.after ^java.util.Date changed since))))))
    :handle-ok
-   (fn time-base:handle-ok [ctx]
-     (let [{:strs [user start end recent_hours]} (get-in ctx [:request :query-params])
-           start (parse-date start)
-           end (parse-date end)
-           recent-hours (Integer/parseInt recent_hours)]
-       (let [r (data/list-tasks-between db user start end (t/hours recent-hours))]
-         (log/info :list-response r)
-         r)))
+   (fn time-base:handle-ok [{:keys [::period] :as ctx}]
+     (cond
+       (contains? ctx ::time-sheet) (::time-sheet ctx)
+       (first period) (apply data/list-tasks-between db period)
+       :else []))
 
    :delete!
    (fn time-base:delete! [{:keys [::data] :as ctx}]
      (let [{:keys [user start_time end_time]} data]
        (log/info ::time-base:delete! data)
-       (data/mark-time-idle! db user start_time end_time)))
+       (when-let [user-id (user-id cache user)]
+         (let [sheet (time-sheet-period user-id data)
+               listed (data/mark-time-idle! db user-id start_time end_time sheet)]
+           (time-changes/publish! changes {:user-id user-id :start start_time :end end_time})
+           (when sheet
+             {::time-sheet listed})))))
+   ;; Writes that asked for their time sheet answer 200 with it, rather than
+   ;; 201 or 204 with no body.
+   :new? (fn [ctx] (not (contains? ctx ::time-sheet)))
+   :respond-with-entity? (fn [ctx] (contains? ctx ::time-sheet))
    :handle-exception handle-exception))
 
-(def datetime-re #"^\d{4}-\d\d-\d\dT\d\d\:\d\d\:\d\d.\d\d\d(\+\d\d:\d\d|Z)$")
 (def TaskTime
-  {:id         #"\d+"
-   :user       s/Str
-   :start_time datetime-re
-   :end_time   datetime-re})
+  (merge TimeSheetReturn
+         {:id         #"\d+"
+          :user       s/Str
+          :start_time datetime-re
+          :end_time   datetime-re}))
 
-(defn task-resource [db id]
+(defn task-resource [db cache changes id]
   (resource
    ;; Adding :representation here due to malformed? happening before media type
    ;; negotiation. See https://github.com/clojure-liberator/liberator/issues/94
@@ -230,58 +319,159 @@
    :allowed-methods [:post]
    :available-media-types ["application/json"]
    :malformed? #(let [[invalid? data] (parse-params % ::data TaskTime)
-                      {:keys [start_time end_time]} (::data data)]
+                      {:keys [user start_time end_time]} (::data data)
+                      user-id (when-not invalid? (active-user-id cache user))]
                   (cond
                     invalid?
                     [true data]
-                    (not (data/active-user? db (-> data ::data :user)))
+                    (nil? user-id)
                     [true {:validation-failure {:user "No such user"}}]
                     (>= (compare start_time end_time) 0)
                     [true {:validation-failure {:start_time "start_time is after end_time"}}]
-                    :else [false data]))
+                    :else [false (assoc data ::user-id user-id)]))
    :handle-malformed (fn [{:keys [validation-failure]}]
                        (pr-str {:validation-failure validation-failure}))
 
-   :post! (fn [ctx]
-            (let [{:keys [user start_time end_time] :as data} (::data ctx)]
+   :post! (fn [{:keys [::user-id] :as ctx}]
+            (let [{:keys [start_time end_time] :as data} (::data ctx)
+                  sheet (time-sheet-period user-id data)]
               (log/info ::task-resource:post! (pr-str data))
-              (data/record-time! db (Integer/parseInt id) user start_time end_time)))
+              (let [listed (data/record-time! db (Integer/parseInt id) user-id start_time end_time sheet)]
+                (time-changes/publish! changes {:user-id user-id :start start_time :end end_time})
+                (when sheet
+                  {::time-sheet listed}))))
+   :new? (fn [ctx] (not (contains? ctx ::time-sheet)))
+   :respond-with-entity? (fn [ctx] (contains? ctx ::time-sheet))
+   :handle-ok (fn [ctx] (::time-sheet ctx))
+
+   :handle-exception handle-exception))
+
+(def BatchData
+  {:user s/Str
+   :entries [{s/Any s/Any}]})
+
+(def max-batch-entries
+  "Larger batches are refused with 413, rather than held in one transaction."
+  500)
+
+(def BatchEntry
+  {:task_id (s/cond-pre (s/constrained s/Int #(<= 0 % Integer/MAX_VALUE) 'int4)
+                        #"^\d{1,9}$")
+   :start_time datetime-re
+   :end_time datetime-re})
+
+(defn- parse-batch-entry [index entry]
+  (let [entry (keywordize-keys entry)]
+    (if-let [error (s/check BatchEntry entry)]
+      {:index index :status "invalid" :validation-failure (pr-str error)}
+      (let [{:keys [task_id start_time end_time]} entry
+            start_time (parse-time start_time)
+            end_time (parse-time end_time)]
+        (if (>= (compare start_time end_time) 0)
+          {:index index :status "invalid" :validation-failure (pr-str {:start_time "start_time is after end_time"})}
+          {:index index :status "valid"
+           ::entry {:task_id (if (string? task_id) (Integer/parseInt task_id) task_id)
+                    :start_time start_time
+                    :end_time end_time}})))))
+
+(defn batch-resource
+  "Records many entries of time for one user in a single transaction. The
+  user is checked once, invalid entries and entries for unknown tasks are
+  reported and skipped, and the response lists the outcome of each entry by
+  its index in the request once the rest are recorded."
+  [db cache changes]
+  (resource
+   :service-available? {:representation {:media-type "application/json"}}
+   :allowed-methods [:post]
+   :available-media-types ["application/json"]
+   :malformed? (fn [ctx]
+                 (let [params (get-in ctx [:request :params])
+                       error (s/check BatchData params)]
+                   (cond
+                     error
+                     [true {:validation-failure error}]
+                     (> (count (:entries params)) max-batch-entries)
+                     [false {::too-large true}]
+                     :else
+                     (if-let [user-id (active-user-id cache (:user params))]
+                       [false {::user-id user-id
+                               ::entries (vec (map-indexed parse-batch-entry (:entries params)))}]
+                       [true {:validation-failure {:user "No such user"}}]))))
+   :handle-malformed handle-malformed
+   :valid-entity-length? (fn [ctx] (not (::too-large ctx)))
+   :handle-request-entity-too-large (fn [_]
+                                      {:error (format "At most %d entries may be sent at once" max-batch-entries)})
+
+   :post! (fn [{:keys [::user-id ::entries] :as ctx}]
+            (let [known (data/existing-task-ids db (distinct (keep (comp :task_id ::entry) entries)))
+                  results (mapv (fn [{:keys [::entry] :as result}]
+                                  (cond
+                                    (nil? entry) result
+                                    (known (:task_id entry)) (assoc result :status "recorded")
+                                    :else (-> result
+                                              (dissoc ::entry)
+                                              (assoc :status "invalid"
+                                                     :validation-failure (pr-str {:task_id "No such task"})))))
+                                entries)
+                  valid (keep ::entry results)]
+              (log/info ::batch-resource:post! user-id :entries (count entries) :valid (count valid))
+              (data/record-times! db user-id valid)
+              (doseq [{:keys [start_time end_time]} valid]
+                (time-changes/publish! changes {:user-id user-id :start start_time :end end_time}))
+              {::results results}))
+   :new? false
+   :respond-with-entity? true
+   :handle-ok (fn [{:keys [::results]}]
+                {:results (map #(dissoc % ::entry) results)})
 
    :handle-exception handle-exception))
 
 (def +resource-prefix+ "time_tracker/public/")
 
+(defn- fingerprint [attr]
+  (fn [node]
+    (update-in node [:attrs attr] assets/asset-url)))
+
+;; The page itself must always be fetched afresh; the files it loads are
+;; fetched from their build's /assets/ path and cached for good.
 (html/deftemplate main-tmpl (str +resource-prefix+ "index.html")
   [version]
-  [:#version] (html/content version))
+  [:#version] (html/content version)
+  [[:link (html/attr? :href)]] (fingerprint :href)
+  [[:script (html/attr? :src)]] (fingerprint :src))
 
 (def +ns+ *ns*)
 
 (defn root-template []
   (-> (apply str (main-tmpl @vers/version))
       response
-      (header "content-type" "text/html;charset=utf-8")))
+      (header "content-type" "text/html;charset=utf-8")
+      (header "Cache-Control" "no-cache")))
 
-(defn app [{:keys [db] :as self}]
+(defn app [{:keys [db reference-data task-cache time-changes] :as self}]
   (routes
    (ANY "/projects" []
-     (plain-list-resource db "projects" sql.project/queries))
+     (must-revalidate (plain-list-resource db reference-data "projects" sql.project/queries)))
    (ANY "/projects/:id{[0-9]+}" [id]
-     (plain-entry-resource db "projects" sql.project/queries (read-string id)))
+     (plain-entry-resource db reference-data time-changes "projects" sql.project/queries (read-string id)))
    (ANY "/activities" []
-     (plain-list-resource db "activities" sql.activity/queries))
+     (must-revalidate (plain-list-resource db reference-data "activities" sql.activity/queries)))
    (ANY "/activities/:id{[0-9]+}" [id]
-     (plain-entry-resource db "activities" sql.activity/queries (read-string id)))
+     (plain-entry-resource db reference-data time-changes "activities" sql.activity/queries (read-string id)))
    (ANY "/users" []
-     (plain-list-resource db "users" sql.user/queries))
+     (must-revalidate (plain-list-resource db reference-data "users" sql.user/queries)))
    (ANY "/users/:id{[0-9]+}" [id]
-     (plain-entry-resource db "activities" sql.user/queries (read-string id)))
+     (plain-entry-resource db reference-data time-changes "users" sql.user/queries (read-string id)))
    (ANY "/time" []
-     (time-base db))
+     (must-revalidate (time-base db reference-data task-cache time-changes)))
+   (ANY "/time/batch" []
+     (batch-resource db reference-data time-changes))
    (ANY "/time/:id" [id]
-     (task-resource db id))
+     (task-resource db reference-data time-changes id))
    (GET "/" []
      (root-template))
+   (GET "/assets/:version/*" [version * :as request]
+     (assets/asset-response request version *))
    (route/resources "/" {:root +resource-prefix+})
    (route/resources "/react" {:root "react/"})
    (not-found "Not found")))
@@ -1,40 +1,162 @@
 (ns time-tracker.timezilla
   (:require
    [liberator.core :refer [resource]]
+   [liberator.representation :refer [ring-response]]
    [compojure.core :refer [routes ANY GET]]
    [time-tracker.ring :as ring]
    [ring.middleware.params :refer [wrap-params]]
    [ring.middleware.keyword-params :refer [wrap-keyword-params]]
    [ring.middleware.nested-params :refer [wrap-nested-params]]
+   [ring.util.io :refer [piped-input-stream]]
+   [clojure.java.io :as io]
+   [clojure.string :as string]
    [clojure.tools.logging :as log]
    [clojure.data.json :as json]
-   [time-tracker.timezilla-data :as td]))
+   [time-tracker.report-cache :as report-cache]
+   [time-tracker.tickets :as tickets]
+   [time-tracker.timezilla-columns :as columns]
+   [time-tracker.timezilla-data :as td])
+  (:import [java.util.zip GZIPOutputStream]))
 
 (extend-type java.sql.Timestamp
   json/JSONWriter
   (-write [date out]
     (json/-write (str date) out)))
 
-(defn timezilla-results [db queries]
+(defn- streaming? [request]
+  (= "true" (get-in request [:params :stream])))
+
+(defn- report-rows
+  "Calls emit! with each row of report, going through the report cache."
+  [{:keys [db tickets report-cache]} report emit!]
+  (report-cache/through report-cache (td/cache-key report) (td/report-scope report)
+                        #(td/stream-query db (partial tickets/lookup-all tickets) report %)
+                        emit!))
+
+(defn- stream-results
+  "Writes the report as `{\"query-id\": ..., \"results\": [...],
+  \"next-cursor\": ...}`, one row at a time, from a background thread. The
+  response is chunked, as its length isn't known up front. rows! calls its
+  argument with each row."
+  [rows! report]
+  (piped-input-stream
+   (fn [out]
+     (with-open [^java.io.Writer w (io/writer out :encoding "UTF-8")]
+       (try
+         (.write w (format "{\"query-id\":%s,\"results\":[" (json/write-str (:query-id report))))
+         (let [row-count (volatile! 0)
+               last-row (volatile! nil)]
+           (rows! (fn [row]
+                    (when (pos? @row-count)
+                      (.write w ","))
+                    (json/write row w)
+                    (vswap! row-count inc)
+                    (vreset! last-row row)))
+           (.write w (format "],\"next-cursor\":%s}"
+                             (json/write-str (td/next-cursor report @row-count @last-row)))))
+         (catch Exception e
+           (log/error e "streaming timezilla-results")))))))
+
+(defn- csv? [ctx]
+  (= "text/csv" (get-in ctx [:representation :media-type])))
+
+(defn- accepts-gzip? [request]
+  (some->> (get-in request [:headers "accept-encoding"])
+           (re-find #"\bgzip\b")))
+
+(defn- csv-value
+  "Whole durations are written without a fraction."
+  [v]
+  (if (and (float? v) (== v (Math/rint v)))
+    (long v)
+    v))
+
+(defn- csv-field [v]
+  (str "\"" (string/replace (str (csv-value v)) "\"" "\"\"") "\""))
+
+(defn- write-csv-row [^java.io.Writer w values]
+  (.write w (string/join "," (map csv-field values)))
+  (.write w "\n"))
+
+(defn- param-values
+  "Multiple values arrive from the nested params as {\"0\" a, \"1\" b}."
+  [v]
+  (cond
+    (map? v) (vals v)
+    (string? v) [v]
+    :else v))
+
+(defn- stream-csv
+  "Writes the report as CSV, with the columns chosen in report-heading, one
+  row at a time from a background thread."
+  [rows! report gzip?]
+  (piped-input-stream
+   (fn [out]
+     (with-open [^java.io.Writer w (io/writer (if gzip? (GZIPOutputStream. out) out) :encoding "UTF-8")]
+       (try
+         (let [{:keys [report-query report-heading]} (:raw-query report)
+               headers (columns/selected-headers report-query (param-values report-heading))
+               row-keys (map columns/csv-key headers)]
+           (write-csv-row w (map :name headers))
+           (rows! (fn [row]
+                    (write-csv-row w (map row row-keys)))))
+         (catch Exception e
+           (log/error e "streaming timezilla-results CSV")))))))
+
+(defn- csv-response [rows! report request]
+  (let [gzip? (accepts-gzip? request)]
+    (ring-response
+     {:body (stream-csv rows! report gzip?)
+      :headers (cond-> {"Content-Disposition" "attachment; filename=\"timezilla.csv\""
+                        "Vary" "Accept, Accept-Encoding"}
+                 gzip? (assoc "Content-Encoding" "gzip"))})))
+
+(defn- parse-report
+  "Checks that the request params describe a report before anything is
+  sent, as streamed and CSV reports are only run once the response has
+  begun."
+  [{:keys [request]}]
+  (try
+    [false {::report (td/report-params (:params request))}]
+    (catch Exception e
+      [true {:validation-failure (.getMessage e)}])))
+
+(defn timezilla-results [self]
   (resource
-   :available-media-types ["application/json"]
+   :available-media-types ["application/json" "text/csv"]
    :allowed-methods [:get]
+   :malformed? parse-report
+   :handle-malformed
+   (fn [{:keys [validation-failure]}]
+     (pr-str {:validation-failure validation-failure}))
    :exists?
-   (fn [{:keys [request]}]
+   (fn [{:keys [::report request] :as ctx}]
      (log/info ::params (pr-str (:params request)))
-     (let [res (td/run-query db (:params request))]
-       {::results res}))
+     (or (streaming? request)
+         (csv? ctx)
+         (let [rows (volatile! [])]
+           (report-rows self report #(vswap! rows conj %))
+           {::results (td/report-response report @rows)})))
    :handle-ok
-   (fn [{:keys [::results] :as ctx}]
-     (log/info ::results results)
-     results)
+   (fn [{:keys [::results ::report request] :as ctx}]
+     (cond
+       (csv? ctx)
+       (csv-response (partial report-rows self report) report request)
+       (streaming? request)
+       (stream-results (partial report-rows self report) report)
+       :else
+       (do
+         (log/info ::results results)
+         results)))
    :handle-exception
    (fn [{:keys [exception]}] (log/error exception "in timezilla-results"))))
 
-(defn app [{:keys [db queries] :as self}]
+(defn app [self]
   (routes
    (ANY "/timezilla-result" []
-     (timezilla-results db queries))))
+     (timezilla-results self))
+   (ANY "/timezilla-result.csv" request
+     ((timezilla-results self) (assoc-in request [:headers "accept"] "text/csv")))))
 
 (defrecord TimezillaUI [queries]
   ring/RingRequestHandler
@@ -1,20 +1,18 @@
 (ns time-tracker.timezilla-data
   (:require
-   [yesql.core :refer [defquery]]
    [clj-time.core :as t]
    [clj-time.format :as f]
    [clj-time.coerce :as tc]
    [clj-http.client :as client]
+   [clojure.java.jdbc :as j]
    [clojure.string :as s]
    [clojure.tools.logging :as log]
    [clojure.data.json :as json]
-   [time-tracker.db-types])
-  (:import [org.joda.time LocalDate DateTimeConstants Days]))
-
-(defquery query-hours-by-time "sql/query-hours-by-time.sql")
-(defquery query-hours-by-task "sql/query-hours-by-task.sql")
-(defquery query-hours-by-user "sql/query-hours-by-user.sql")
-(defquery query-hours-by-project "sql/query-hours-by-project.sql")
+   [time-tracker.db-types :refer [sql-array]]
+   [time-tracker.named-sql :as named-sql])
+  (:import [org.joda.time LocalDate DateTimeConstants Days]
+           [org.apache.commons.codec.binary Base64]
+           [java.sql Timestamp]))
 
 (defn parse-specific [specific default]
   (try
@@ -53,15 +51,13 @@
       :USER_SPECIFIED (parse-specific specific max-time)
       nil)))
 
-(defn get-report-query [query]
-  (let [val (:report-query query)]
-    (case (keyword val)
-      :BY_TIME query-hours-by-time
-      :BY_TASK query-hours-by-task
-      :BY_USER query-hours-by-user
-      :BY_PROJECT query-hours-by-project
-      nil)))
+(def report-sql
+  {:BY_TIME "sql/query-hours-by-time.sql"
+   :BY_TASK "sql/query-hours-by-task.sql"
+   :BY_USER "sql/query-hours-by-user.sql"
+   :BY_PROJECT "sql/query-hours-by-project.sql"})
 
+;; The reports round with the granulate() SQL function, which mirrors this.
 (defn granulator [minutes granularity kind]
   (cond
     (= 0 granularity) minutes
@@ -75,63 +71,194 @@
               :UP (if (= remainder 0) lowGran highGran)
               (throw (Exception. kind))))))
 
-(defn ticket-details [tracker-url bug]
-  (if (and tracker-url bug)
-    (try
-      (let [details (-> (format tracker-url bug) client/get :body json/read-str)]
-        {:link (get details "html_url" "")
-         :title (get details "title" "")
-         :state (get details "state" "")})
-      (catch Exception e {:link "" :title "" :state ""}))
-    {:link "" :title "" :state ""}))
-
-(defn parsed-minutes [row {:keys [minutes-per-day granularity kind]}]
-  (->
-   row
-   (assoc :raw-minutes (:minutes row)
-          :minutes (granulator (:minutes row) granularity kind)
-          :ticket (ticket-details (:tracker_url row) (:bug row)))
-   (#(assoc %
-            :hours (/ (:minutes %) 60)
-            :days (Double/parseDouble (format "%.2f" (float (/ (:minutes %) minutes-per-day))))))))
-
-(defn run-query [db raw-query]
-  (log/debug ::run-query db raw-query)
-  (let [users (-> (:user raw-query) vals (#(map read-string %)))
-        projects (-> (:project raw-query) vals (#(map read-string %)))
-        activities (-> (:activity raw-query) vals (#(map read-string %)))
+(def no-ticket {:link "" :title "" :state ""})
+
+(defn ticket-details
+  ([tracker-url bug]
+   (ticket-details tracker-url bug {}))
+  ([tracker-url bug http-options]
+   (if (and tracker-url bug)
+     (try
+       (let [details (-> (format tracker-url bug) (client/get http-options) :body json/read-str)]
+         {:link (get details "html_url" "")
+          :title (get details "title" "")
+          :state (get details "state" "")})
+       (catch Exception e no-ticket))
+     no-ticket)))
+
+(defn parsed-minutes
+  "Adds the ticket to a report row. The query has already rounded the row's
+  minutes to the report's granularity and worked out its hours and days.
+  tickets maps [tracker-url bug] to details, as from
+  time-tracker.tickets/lookup-all."
+  [row {:keys [tickets]}]
+  (-> row
+      (dissoc :raw_minutes)
+      (assoc :raw-minutes (:raw_minutes row)
+             :ticket (get tickets [(:tracker_url row) (:bug row)] no-ticket))))
+
+;; Reports are paged by keyset rather than offset: each page ends with a
+;; cursor naming its last row, and the next page starts strictly after it.
+;; BY_TIME rows are ordered by (start_time, id), the aggregates by their id.
+
+(defn- timestamp-micros [^Timestamp ts]
+  (+ (* (quot (.getTime ts) 1000) 1000000)
+     (quot (.getNanos ts) 1000)))
+
+(defn- micros-timestamp [micros]
+  (doto (Timestamp. (* (quot micros 1000000) 1000))
+    (.setNanos (* (mod micros 1000000) 1000))))
+
+(defn- encode-cursor [parts]
+  (Base64/encodeBase64URLSafeString (.getBytes ^String (s/join ":" parts) "UTF-8")))
+
+(defn- parse-cursor
+  "The keyset parameters for the page after cursor, or for the first page
+  when there's no cursor or it can't be read."
+  [report-query cursor]
+  (let [first-page {:after_start nil :after_id nil}]
+    (if (s/blank? cursor)
+      first-page
+      (try
+        (let [parts (-> (Base64/decodeBase64 ^String cursor) (String. "UTF-8") (s/split #":"))
+              [start id] (if (= :BY_TIME report-query) parts [nil (first parts)])]
+          {:after_start (some-> start Long/parseLong micros-timestamp)
+           :after_id (Integer/parseInt id)})
+        (catch Exception e
+          (log/warn (format "Bad cursor: %s" cursor))
+          first-page)))))
+
+(defn- parse-ids [v]
+  (map #(Integer/parseInt %) (vals v)))
+
+(defn report-params
+  "Works out the SQL parameters for a report, the options parsed-minutes
+  needs for its rows and the client's query id from the request params.
+  The rounding to the report's granularity happens in the query. Throws
+  if the params don't describe a report. The functions below take the
+  report this returns, so it's only worked out once per request."
+  [raw-query]
+  (when-not (report-sql (keyword (:report-query raw-query)))
+    (throw (ex-info (str "Unknown report-query: " (:report-query raw-query)) {})))
+  (let [users (parse-ids (:user raw-query))
+        projects (parse-ids (:project raw-query))
+        activities (parse-ids (:activity raw-query))
         granularity (-> (:time-granularity-mins raw-query) Integer/parseInt)
         hours-per-day (-> (:hours-per-day raw-query) Integer/parseInt)
-        report-query (get-report-query raw-query)
         minutes-per-day (* 60 hours-per-day)
-        rounding-type (-> (:rounding-type raw-query) keyword)
+        rounding-type (:rounding-type raw-query)
+        ;; Whether aggregate reports round each entry before adding them up,
+        ;; rather than rounding the total.
+        round-entries (= "ENTRY" (:rounding-scope raw-query))
         bugid (when-let [bs (:bug-numbers raw-query)] (s/split bs #","))
         today (or (tc/from-string (:today raw-query)) (t/today))
         query-id (or (:query-id raw-query) -1)
-        query {:projectid (when-not (empty? projects) projects)
-               :has_projectid (-> projects empty? not)
-               :userid (when-not (empty? users) users)
-               :has_userid (-> users empty? not)
-               :activityid (when-not (empty? activities) activities)
-               :has_activityid (-> activities empty? not)
-               :week_start (tc/to-sql-date (date-from today raw-query))
-               :week_end (tc/to-sql-date (date-to today raw-query))
-               :bugid bugid
-               :has_bugid (not (empty? bugid))
-               ;; We can't send 'LIMIT ALL' to the parameterised SQL query, so
-               ;; we use MAX_VALUE instead when we want to not have a limit
-               :limit  (let [lim (Integer/parseInt (:limit raw-query))]
-                         (if (> lim 0)
-                           lim
-                           Integer/MAX_VALUE))}]
-    (log/debug ::query query)
-    (let [raw-results
-          (report-query query {:connection (:conn db)})
-          parsed-results
-          (map #(parsed-minutes % {:minutes-per-day minutes-per-day
-                                   :granularity granularity
-                                   :kind rounding-type}) raw-results)]
-      {:raw-query (prn-str raw-query)
-       :query (prn-str query)
-       :results parsed-results
-       :query-id query-id})))
+        query (merge
+               (parse-cursor (keyword (:report-query raw-query)) (:after raw-query))
+               {:projectid (seq projects)
+                :userid (seq users)
+                :activityid (seq activities)
+                :week_start (tc/to-sql-date (date-from today raw-query))
+                :week_end (tc/to-sql-date (date-to today raw-query))
+                :bugid (seq bugid)
+                :granularity granularity
+                :rounding rounding-type
+                :round_entries round-entries
+                :minutes_per_day minutes-per-day
+                ;; No limit leaves the LIMIT out of the query altogether.
+                :limit (let [lim (Integer/parseInt (:limit raw-query))]
+                         (when (> lim 0)
+                           lim))})]
+    {:raw-query raw-query
+     :report-query (keyword (:report-query raw-query))
+     :query query
+     :row-options {}
+     :query-id query-id}))
+
+(defn cache-key
+  "Identifies the rows a report request produces, independent of the order
+  its filters were given in."
+  [{:keys [report-query query row-options]}]
+  (let [normalise #(some-> % sort vec)]
+    [report-query
+     (-> query
+         (update :userid normalise)
+         (update :projectid normalise)
+         (update :activityid normalise)
+         (update :bugid normalise))
+     row-options]))
+
+(defn report-scope
+  "The time the report covers: the [start end) dates of its window, and
+  the set of users it's limited to, or nil for everyone."
+  [{{:keys [week_start week_end userid]} :query}]
+  {:window [week_start week_end]
+   :users (some-> userid set)})
+
+(defn next-cursor
+  "The cursor for the page after one of row-count rows ending with
+  last-row, or nil when that page was the last."
+  [{:keys [report-query] {:keys [limit]} :query} row-count last-row]
+  (when (and last-row limit (>= row-count limit))
+    (encode-cursor
+     (if (= :BY_TIME report-query)
+       [(timestamp-micros (:start_time last-row)) (:id last-row)]
+       [(:id last-row)]))))
+
+(defn report-response
+  "The buffered form of a report: its rows along with the query behind them,
+  the client's query id and the cursor for the next page, if any."
+  [{:keys [raw-query query query-id] :as report} rows]
+  {:raw-query (prn-str raw-query)
+   :query (prn-str query)
+   :results rows
+   :query-id query-id
+   :next-cursor (next-cursor report (count rows) (peek rows))})
+
+(defn- report-flags
+  "The optional parts of the report query that query needs: the filters it
+  sets, whether it starts after a cursor or has a limit, and whether it
+  rounds entries or totals."
+  [query]
+  (cond-> #{(if (:round_entries query) :entries :totals)}
+    (:userid query) (conj :userid)
+    (:projectid query) (conj :projectid)
+    (:activityid query) (conj :activityid)
+    (:bugid query) (conj :bugid)
+    (:after_id query) (conj :after)
+    (:limit query) (conj :limit)))
+
+(defn- sql-arrays
+  "query with its filters as SQL arrays, for `= ANY(:userid)` and friends."
+  [query]
+  (let [ids #(some->> % (sql-array "int4"))]
+    (-> query
+        (update :userid ids)
+        (update :projectid ids)
+        (update :activityid ids)
+        (update :bugid #(some->> % (sql-array "text"))))))
+
+(def stream-fetch-size 500)
+
+(defn stream-query
+  "Runs the report, reading it through a server-side cursor
+  stream-fetch-size rows at a time and passing every finished row to emit!
+  as it goes, so that the report is never held in memory. Each batch looks
+  up only the tickets no earlier batch asked for, so every ticket is looked
+  up once per report; only the tickets, not the rows, are kept throughout."
+  [db lookup-tickets {:keys [report-query query row-options]} emit!]
+  (let [sql-params (named-sql/render-resource (report-sql report-query)
+                                              (report-flags query)
+                                              (sql-arrays query))]
+    (log/debug ::stream-query query)
+    ;; Postgres only uses a cursor for the fetch size inside a transaction.
+    (j/with-db-transaction [trans (:conn db) {:read-only? true}]
+      (j/query trans sql-params
+               {:fetch-size stream-fetch-size
+                :result-set-fn (fn [rows]
+                                 (let [tickets (volatile! {})
+                                       looked-up? #(contains? @tickets [(:tracker_url %) (:bug %)])]
+                                   (doseq [batch (partition-all stream-fetch-size rows)]
+                                     (vswap! tickets merge (lookup-tickets (remove looked-up? batch)))
+                                     (doseq [row batch]
+                                       (emit! (parsed-minutes row (assoc row-options :tickets @tickets)))))))}))))
@@ -0,0 +1,35 @@
+(ns time-tracker.assets-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [ring.mock.request :refer [request header]]
+            [time-tracker.assets :as assets]
+            [time-tracker.test-systems :refer [with-system ok?]]))
+
+(deftest root-page-loads-fingerprinted-assets
+  (with-system
+    (let [response (handler (request :get "/"))
+          page (apply str (:body response))]
+      (is (ok? response))
+      (is (= "no-cache" (get-in response [:headers "Cache-Control"])))
+      (is (.contains page (str "href=\"" (assets/asset-url "less/timetracker.less") "\"")))
+      (is (.contains page (str "src=\"" (assets/asset-url "out/timetracker.js") "\""))))))
+
+(deftest assets-are-cached-for-their-build-only
+  (with-system
+    (let [current (handler (request :get (assets/asset-url "logo-blocky.svg")))
+          stale (handler (request :get "/assets/some-other-build/logo-blocky.svg"))]
+      (is (ok? current))
+      (is (= "image/svg+xml" (get-in current [:headers "Content-Type"])))
+      (is (= "public, max-age=31536000, immutable" (get-in current [:headers "Cache-Control"])))
+      (is (= "Accept-Encoding" (get-in current [:headers "Vary"])))
+      (is (ok? stale))
+      (is (= "no-cache" (get-in stale [:headers "Cache-Control"]))))
+    (is (= 404 (:status (handler (request :get (assets/asset-url "no-such-file.js"))))))
+    (is (= 404 (:status (handler (request :get (assets/asset-url "../timetracker-version"))))))))
+
+(deftest compressed-only-for-clients-that-accept-it
+  (with-system
+    (let [response (-> (request :get (assets/asset-url "less/timetracker.less"))
+                       (header "Accept-Encoding" "identity, gzip;q=0, br;q=0")
+                       handler)]
+      (is (ok? response))
+      (is (nil? (get-in response [:headers "Content-Encoding"]))))))
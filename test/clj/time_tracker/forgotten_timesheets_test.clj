@@ -1,9 +1,10 @@
 (ns time-tracker.forgotten-timesheets-test
   (:require  [clojure.test :refer [deftest testing is]]
-             [ring.mock.request :refer [request]]
+             [ring.mock.request :refer [request header]]
+             [clj-time.core :as t]
              [hickory.core :as hc]
              [hickory.select :as hs]
-             [time-tracker.test-systems :refer [with-system ok?]]))
+             [time-tracker.test-systems :refer [with-system ok? create-task! record-time! get-location-header]]))
 
 (deftest test-forgotten-sheets-works
   (with-system
@@ -21,3 +22,13 @@
             ["TomP" "Stuart" "Rolo" "Matthew" "Mikep"]
             ; list of random active users from resources/db/migration/V20110809095043__seed-data.sql who should not be deactivated by tests...
 )))))))
+
+(deftest forgotten-sheets-revalidate-until-time-is-recorded
+  (with-system
+    (let [etag (get-in (handler (request :get "/forgotten-timesheets")) [:headers "ETag"])
+          revalidate #(handler (header (request :get "/forgotten-timesheets") "If-None-Match" etag))]
+      (is etag)
+      (is (= 304 (:status (revalidate))))
+      (let [task-url (get-location-header (create-task! handler {:project_id 1 :activity_id 1 :bug "1" :description "forgotten"}))]
+        (record-time! handler task-url "paulj" (t/minus (t/now) (t/hours 2)) (t/minus (t/now) (t/hours 1))))
+      (is (ok? (revalidate))))))
@@ -0,0 +1,26 @@
+(ns time-tracker.graphs-data-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [ring.mock.request :refer [request]]
+            [clj-time.core :as t]
+            [time-tracker.test-systems :refer [with-system ok? json-body create-task! record-time! get-location-header]]))
+
+(deftest dashboard-returns-every-graph-in-one-response
+  (with-system
+    (let [task-url (get-location-header (create-task! handler {:project_id 1 :activity_id 1 :bug "1" :description "dashboard"}))]
+      (doseq [[day hour] [[5 9] [5 11] [1 9]]]
+        (record-time! handler task-url "paulj" (t/date-time 2016 7 day hour) (t/date-time 2016 7 day (inc hour))))
+      (let [params {:user-name "paulj" :date "20160706" :days-back "7"}
+            dashboard (handler (request :get "/graphs/dashboard" params))
+            {:keys [projects-for-week hours-by-day] :as body} (json-body dashboard)
+            separately #(json-body (handler (request :get % %2)))]
+        (is (ok? dashboard))
+        (is (= 7 (count hours-by-day)))
+        (is (== 2 (-> hours-by-day :2016-07-05 first :hours)))
+        (is (= #{:projects-for-week :hours-by-day} (set (keys body))))
+        (is (== 2 (-> projects-for-week :current-week vals first :hours)))
+        (is (== 1 (-> projects-for-week :prev-week :hours)))
+        (testing "matches the individual endpoints"
+          (is (= projects-for-week
+                 (separately "/graphs/projects-for-week" {:user-name "paulj" :date "20160706"})))
+          (is (= hours-by-day
+                 (separately "/graphs/hours-by-day" {:user-name "paulj" :start-date "20160629" :end-date "20160706"}))))))))
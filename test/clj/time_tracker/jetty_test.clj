@@ -0,0 +1,46 @@
+(ns time-tracker.jetty-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [com.stuartsierra.component :as component]
+            [time-tracker.jetty :as jetty]
+            [time-tracker.metrics :as metrics]
+            [time-tracker.ring :as ring])
+  (:import [java.net HttpURLConnection URL]))
+
+(defn- stub-app
+  "A web app whose /graphs/ requests deliver entered, then wait for release
+  to be delivered."
+  [entered release]
+  (reify ring/RingRequestHandler
+    (request-handler [_]
+      (fn [{:keys [uri]}]
+        (when (re-find #"^/graphs/" uri)
+          (deliver entered true)
+          (deref release 10000 nil))
+        {:status 200 :body "ok"}))))
+
+(defn- fetch [server path]
+  (let [^HttpURLConnection conn (.openConnection (URL. (format "http://localhost:%d%s" (:port server) path)))]
+    {:status (.getResponseCode conn)
+     :retry-after (.getHeaderField conn "Retry-After")}))
+
+(deftest sheds-requests-over-a-routes-limit
+  (let [entered (promise)
+        release (promise)
+        metrics (component/start (metrics/instance))
+        server (component/start
+                (assoc (jetty/jetty-server 0 {:route-limits {"/graphs/*" 1} :retry-after-s 7})
+                       :web-app (stub-app entered release)
+                       :metrics metrics))]
+    (try
+      (let [first-request (future (fetch server "/graphs/dashboard"))]
+        (is (deref entered 10000 false) "The first request holds the route's permit")
+        (is (= {:status 503 :retry-after "7"} (fetch server "/graphs/hours-by-day")))
+        (is (= 200 (:status (fetch server "/time"))) "Other routes are unaffected")
+        (deliver release true)
+        (is (= 200 (:status @first-request)))
+        (is (= 200 (:status (fetch server "/graphs/hours-by-day"))) "The permit is returned"))
+      (let [body (metrics/render metrics)]
+        (is (re-find #"(?m)^http_requests_shed_total\{route=\"/graphs/\*\"\} 1$" body))
+        (is (re-find #"(?m)^jetty_queued_requests \d+$" body)))
+      (finally
+        (component/stop server)))))
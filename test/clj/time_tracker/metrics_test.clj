@@ -0,0 +1,50 @@
+(ns time-tracker.metrics-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [com.stuartsierra.component :as component]
+            [ring.mock.request :refer [request]]
+            [time-tracker.metrics :as metrics]
+            [time-tracker.test-systems :refer [with-system ok?]]))
+
+(deftest route-labels-collapse-ids
+  (is (= "/time/:id" (metrics/route-label "/time/1234")))
+  (is (= "/time/batch" (metrics/route-label "/time/batch")))
+  (is (= "/time" (metrics/route-label "/time")))
+  (is (= "/graphs/*" (metrics/route-label "/graphs/hours-by-day")))
+  (is (= "other" (metrics/route-label "/no/such/thing"))))
+
+(deftest metrics-are-nil-safe
+  (is (nil? (metrics/inc! nil "c" {})))
+  (is (nil? (metrics/record! nil "h" {} 1000)))
+  (is (nil? (metrics/register-gauge! nil "g" {} (constantly 1)))))
+
+(deftest histograms-report-cumulative-buckets
+  (let [m (component/start (metrics/instance))]
+    (metrics/record! m "h" {} 2000000)
+    (metrics/record! m "h" {} 20000000000)
+    (let [body (metrics/render m)]
+      (is (re-find #"(?m)^# TYPE h histogram$" body))
+      (is (re-find #"(?m)^h_bucket\{le=\"0\.001\"\} 0$" body))
+      (is (re-find #"(?m)^h_bucket\{le=\"0\.0025\"\} 1$" body))
+      (is (re-find #"(?m)^h_bucket\{le=\"10\.0\"\} 1$" body))
+      (is (re-find #"(?m)^h_bucket\{le=\"\+Inf\"\} 2$" body))
+      (is (re-find #"(?m)^h_sum 20\.002$" body))
+      (is (re-find #"(?m)^h_count 2$" body)))))
+
+(deftest metrics-endpoint-reports-requests
+  (with-system
+    (is (ok? (handler (request :get "/users"))))
+    (let [response (handler (request :get "/metrics"))
+          body (:body response)]
+      (is (ok? response))
+      (is (re-find #"(?m)^http_requests_total\{method=\"get\",route=\"/users\",status=\"200\"\} 1$" body))
+      (is (re-find #"(?m)^http_request_duration_seconds_count\{route=\"/users\"\} 1$" body))
+      (is (re-find #"(?m)^http_requests_in_flight\{route=\"/metrics\"\} 1$" body)))))
+
+(deftest metrics-endpoint-reports-the-pool
+  (with-system
+    (is (ok? (handler (request :get "/users"))))
+    (let [body (:body (handler (request :get "/metrics")))]
+      (is (re-find #"(?m)^db_pool_connections\{state=\"active\"\} \d+$" body))
+      (is (re-find #"(?m)^db_pool_connections\{state=\"idle\"\} \d+$" body))
+      (is (re-find #"(?m)^db_pool_connections\{state=\"waiting\"\} 0$" body))
+      (is (re-find #"(?m)^db_pool_checkout_seconds_count [1-9]\d*$" body)))))
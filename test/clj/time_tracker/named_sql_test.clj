@@ -0,0 +1,44 @@
+(ns time-tracker.named-sql-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.string :as string]
+            [time-tracker.named-sql :as named-sql]))
+
+(deftest renders-named-parameters-in-order
+  (is (= ["SELECT * FROM t WHERE a = ? AND b < ? AND c = ?" 1 2 1]
+         (named-sql/render "SELECT * FROM t WHERE a = :a AND b < :b_value AND c = :a"
+                           {:a 1 :b_value 2}))))
+
+(deftest expands-collections
+  (is (= ["SELECT * FROM t WHERE id IN (?, ?, ?)" 1 2 3]
+         (named-sql/render "SELECT * FROM t WHERE id IN (:ids)" {:ids [1 2 3]})))
+  (testing "empty and missing collections bind a single null, as yesql does"
+    (is (= ["SELECT * FROM t WHERE id IN (?)" nil]
+           (named-sql/render "SELECT * FROM t WHERE id IN (:ids)" {:ids []})))
+    (is (= ["SELECT * FROM t WHERE id IN (?)" nil]
+           (named-sql/render "SELECT * FROM t WHERE id IN (:ids)" {:ids nil})))))
+
+(deftest leaves-casts-and-strings-alone
+  (is (= ["SELECT ? :: date, '00:15:00' :: interval, 'it''s :not' FROM t WHERE x::text = ?" "2016-01-01" "y"]
+         (named-sql/render "SELECT :d :: date, '00:15:00' :: interval, 'it''s :not' FROM t WHERE x::text = :x"
+                           {:d "2016-01-01" :x "y"}))))
+
+(deftest complains-about-missing-parameters
+  (is (thrown? clojure.lang.ExceptionInfo
+               (named-sql/render "SELECT :a" {}))))
+
+(deftest expands-guarded-lines
+  (let [sql "SELECT *\nFROM t\nWHERE TRUE\n  [a] AND a = :a\n  [a b] AND b = :b\nLIMIT 1"]
+    (is (= "SELECT *\nFROM t\nWHERE TRUE\nLIMIT 1" (named-sql/expand sql #{})))
+    (is (= "SELECT *\nFROM t\nWHERE TRUE\n  AND a = :a\nLIMIT 1" (named-sql/expand sql #{:a})))
+    (is (= "SELECT *\nFROM t\nWHERE TRUE\n  AND a = :a\n  AND b = :b\nLIMIT 1" (named-sql/expand sql #{:a :b})))))
+
+(deftest renders-the-report-queries
+  (let [[sql & args] (named-sql/render-resource "sql/query-hours-by-time.sql"
+                                                #{:userid :limit}
+                                                {:userid "users" :minutes_per_day 420
+                                                 :granularity 15 :rounding "PROPER"
+                                                 :week_start "a" :week_end "b" :limit 10})]
+    (is (not (re-find #":[a-z]" (string/replace sql "::" ""))))
+    (is (not (re-find #"\[" sql)))
+    (is (= 1 (count (re-seq #"ANY\(\?\)" sql))))
+    (is (= [420 15 "PROPER" "a" "b" "users" 10] args))))
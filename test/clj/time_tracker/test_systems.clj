@@ -6,11 +6,13 @@
             [time-tracker.db-env :refer [db-from-env]]
             [time-tracker.environ :refer [core-system]]
             [time-tracker.postgresql :as postgresql]
-            [time-tracker.ring :as ring]))
+            [time-tracker.ring :as ring]
+            [time-tracker.task-cache :as task-cache]))
 
 (defn clean-db [system]
   (let [conn (-> system :db :conn)]
-    (j/execute! conn ["TRUNCATE task_time, tasks"])))
+    (j/execute! conn ["TRUNCATE task_time, task_time_daily, user_activity, user_day_versions, tasks"])
+    (task-cache/clear! (:task-cache system))))
 
 (defn empty-table! [system table]
   (let [conn (-> system :db :conn)]
@@ -38,6 +40,21 @@
 (defn json-body [response]
   (-> response :body (json/read-str :key-fn keyword)))
 
+(defn create-task!
+  "POSTs a task's details (:project_id, :activity_id, :bug and
+  :description) to /time; the response's Location is the task."
+  [handler task]
+  (-> (request :post "/time")
+      (body task)
+      handler))
+
+(defn record-time!
+  "Records user's time from start to end against the task at task-url."
+  [handler task-url user start end]
+  (-> (request :post task-url)
+      (body {:user user :start_time start :end_time end})
+      handler))
+
 (defmacro with-system
   "*Unhygienic* macro which will initialise and start a new system (minus
   web-server). Will lexically bind system and handler. Stops the system
@@ -0,0 +1,86 @@
+(ns time-tracker.tickets-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [clojure.data.json :as json]
+            [com.stuartsierra.component :as component]
+            [ring.adapter.jetty :refer [run-jetty]]
+            [time-tracker.tickets :as tickets]
+            [time-tracker.timezilla-data :as td])
+  (:import [java.util.concurrent CountDownLatch TimeUnit]))
+
+(defn- stub-tracker
+  "A tracker that answers /issues/<n> after delay-ms, counting requests per
+  issue in hits."
+  [hits delay-ms]
+  (run-jetty (fn [{:keys [uri]}]
+               (let [[_ n] (re-find #"^/issues/(\d+)$" uri)]
+                 (swap! hits update n (fnil inc 0))
+                 (Thread/sleep delay-ms)
+                 {:status 200
+                  :headers {"Content-Type" "application/json"}
+                  :body (json/write-str {:html_url (str "http://tracker/" n)
+                                         :title (str "Issue " n)
+                                         :state "open"})}))
+             {:port 0 :join? false}))
+
+(defn- tracker-url [server]
+  (format "http://localhost:%d/issues/%%s"
+          (->> server (.getConnectors) (some (memfn getLocalPort)))))
+
+(defmacro with-tracker [[url hits delay-ms options] & body]
+  `(let [~hits (atom {})
+         server# (stub-tracker ~hits ~delay-ms)
+         ~url (tracker-url server#)
+         ~'tickets (component/start (tickets/instance ~options))]
+     (try
+       ~@body
+       (finally
+         (component/stop ~'tickets)
+         (.stop server#)))))
+
+(deftest looks-up-each-ticket-once-and-caches-it
+  (with-tracker [url hits 0 {}]
+    (let [rows (for [bug ["1" "2" "1" "3" "2" nil]]
+                 {:tracker_url url :bug bug})
+          found (tickets/lookup-all tickets rows)]
+      (is (= #{[url "1"] [url "2"] [url "3"]} (set (keys found))))
+      (is (= {:link "http://tracker/2" :title "Issue 2" :state "open"} (found [url "2"])))
+      (is (= {"1" 1 "2" 1 "3" 1} @hits))
+      (testing "a second report is served from the cache"
+        (is (= found (tickets/lookup-all tickets rows)))
+        (is (= {"1" 1 "2" 1 "3" 1} @hits))))))
+
+(deftest slow-trackers-give-empty-tickets-which-are-not-cached
+  (with-tracker [url hits 500 {:timeout-ms 100}]
+    (let [rows [{:tracker_url url :bug "7"}]]
+      (is (= {[url "7"] td/no-ticket} (tickets/lookup-all tickets rows)))
+      (is (= {[url "7"] td/no-ticket} (tickets/lookup-all tickets rows)))
+      (is (= {"7" 2} @hits)))))
+
+(deftest lookups-run-in-parallel
+  (let [in-flight (atom 0)
+        peak (atom 0)
+        all-arrived (CountDownLatch. 8)
+        server (run-jetty (fn [_]
+                            (swap! peak max (swap! in-flight inc))
+                            (.countDown all-arrived)
+                            (try
+                              ;; Held until all eight are in, or it's clear
+                              ;; they won't be.
+                              (.await all-arrived 5 TimeUnit/SECONDS)
+                              {:status 200
+                               :headers {"Content-Type" "application/json"}
+                               :body (json/write-str {:html_url "http://tracker/n"
+                                                      :title "Issue"
+                                                      :state "open"})}
+                              (finally
+                                (swap! in-flight dec))))
+                          {:port 0 :join? false})
+        url (tracker-url server)
+        tickets (component/start (tickets/instance {:threads 8 :timeout-ms 10000 :deadline-ms 10000}))]
+    (try
+      (let [rows (for [bug (range 8)] {:tracker_url url :bug (str bug)})]
+        (tickets/lookup-all tickets rows)
+        (is (= 8 @peak)))
+      (finally
+        (component/stop tickets)
+        (.stop server)))))
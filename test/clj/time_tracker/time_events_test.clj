@@ -0,0 +1,42 @@
+(ns time-tracker.time-events-test
+  (:require [clojure.test :refer [deftest is]]
+            [clojure.java.io :as io]
+            [com.stuartsierra.component :as component]
+            [time-tracker.jetty :as jetty]
+            [time-tracker.time-events :as time-events]
+            [time-tracker.test-systems :refer [with-system]])
+  (:import [java.net HttpURLConnection URL]))
+
+(defn- eventually [f timeout-ms]
+  (let [deadline (+ (System/currentTimeMillis) timeout-ms)]
+    (loop []
+      (cond
+        (f) true
+        (> (System/currentTimeMillis) deadline) false
+        :else (do (Thread/sleep 50) (recur))))))
+
+(deftest closed-streams-release-their-subscriber-and-permit
+  (with-system
+    (let [events (component/start
+                  (assoc (time-events/instance {:keepalive-ms 100})
+                         :db (:db system)
+                         :reference-data (:reference-data system)))
+          server (component/start
+                  (assoc (jetty/jetty-server 0 {:route-limits {"/time/events" 1}})
+                         :web-app events))
+          open! #(.openConnection (URL. (format "http://localhost:%d/time/events?user=paulj" (:port server))))
+          streams #(reduce + (map count (vals @(:subscribers events))))]
+      (try
+        (let [^HttpURLConnection conn (open!)
+              reader (io/reader (.getInputStream conn))]
+          (is (= 200 (.getResponseCode conn)))
+          (is (= ": connected" (.readLine reader)))
+          (is (= 1 (streams)))
+          (.disconnect conn)
+          (is (eventually #(zero? (streams)) 10000) "The subscriber is dropped")
+          (let [^HttpURLConnection again (open!)]
+            (is (= 200 (.getResponseCode again)) "The route's permit is returned")
+            (.disconnect again)))
+        (finally
+          (component/stop server)
+          (component/stop events))))))
@@ -2,12 +2,19 @@
   (:require  [clojure.test :refer [deftest testing is]]
              [clojure.data.json :as json]
              [clojure.java.jdbc :as j]
+             [clojure.java.io :as io]
              [ring.mock.request :refer [request body content-type header]]
+             [com.stuartsierra.component :as component]
              [clj-time.core :as t]
              [clj-time.coerce :as tc]
              [clj-time.format :as f]
              [clojure.tools.logging :as log]
-             [time-tracker.test-systems :refer [with-system ok? json? created? no-content? json-body empty-table! random-string get-location-header]]))
+             [time-tracker.reference-data :as reference-data]
+             [time-tracker.rollup :as rollup]
+             [time-tracker.sql.project :as sql.project]
+             [time-tracker.sql.user :as sql.user]
+             [time-tracker.time-service :refer [max-batch-entries]]
+             [time-tracker.test-systems :refer [with-system ok? json? created? no-content? json-body empty-table! random-string get-location-header create-task!]]))
 
 (defn post-response-fn [base handler]
   (let [name (random-string)]
@@ -83,6 +90,21 @@
       (log/debug ::delete-response delete-response)
       (is (= (:status delete-response) 404)))))
 
+(defn plain-list-revalidates-with-etag [kind]
+  (with-system
+    (let [path (str "/" kind)
+          first-response (handler (request :get path))
+          etag (-> first-response :headers (get "ETag"))
+          revalidate #(-> (request :get path)
+                          (header "If-None-Match" etag)
+                          handler
+                          :status)]
+      (is (ok? first-response))
+      (is etag)
+      (is (= 304 (revalidate)))
+      (is (created? (post-response-fn path handler)))
+      (is (= 200 (revalidate))))))
+
 (defmacro test-plain-items [kind]
   `(do
      (deftest ~(symbol (format "%s-returns-%s-listing" kind kind))
@@ -98,18 +120,14 @@
      (deftest ~(symbol (format "%s-can-delete-%s" kind kind))
        (plain-item-can-delete ~kind))
      (deftest ~(symbol (format "%s-cant-delete-missing-%s" kind kind))
-       (plain-item-cant-delete ~kind))))
+       (plain-item-cant-delete ~kind))
+     (deftest ~(symbol (format "%s-revalidates-%s-listing" kind kind))
+       (plain-list-revalidates-with-etag ~kind))))
 
 (test-plain-items "activities")
 (test-plain-items "projects")
 (test-plain-items "users")
 
-(defn create-task! [handler task]
-  (log/debug ::create-task! task)
-  (-> (request :post "/time")
-      (body task)
-      handler))
-
 (defn get-location [response]
   (let [location (-> response :headers (get "Location"))]
     (if (nil? location)
@@ -147,6 +165,15 @@
       (is (= (-> response :headers (get "Location"))
              (-> response2 :headers (get "Location")))))))
 
+(deftest concurrent-creates-of-a-new-task-return-the-same-task
+  (with-system
+    (let [task (assoc task-info-1 :description (random-string))
+          responses (->> (repeatedly 8 #(future (create-task! handler task)))
+                         doall
+                         (map deref))]
+      (is (every? created? responses))
+      (is (= 1 (count (set (map get-location responses))))))))
+
 (deftest returns-an-error-when-project-or-activity-is-nil
   (with-system
     (doseq [field #{:project_id :activity_id}]
@@ -253,6 +280,93 @@
                    :end_time (t/date-time 2011 8 8 14 0 0)}]
                  (:times task))))))))
 
+(deftest time-listing-revalidates-until-the-day-changes
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          fmt (f/formatters :date-time)
+          query {:user user
+                 :start (f/unparse fmt (t/date-time 2011 8 8))
+                 :end (f/unparse fmt (t/date-time 2011 8 9))
+                 :recent_hours 0}
+          listing #(-> (request :get "/time" query)
+                       (cond-> % (header "If-None-Match" %))
+                       handler)]
+      (empty-table! system :task_time)
+      (record-time! handler task1-id user (t/date-time 2011 8 8 13 00 00) (t/date-time 2011 8 8 14 00 00))
+      (let [first-response (listing nil)
+            etag (get-in first-response [:headers "ETag"])]
+        (is (= 200 (:status first-response)))
+        (is etag)
+        (is (get-in first-response [:headers "Last-Modified"]))
+        (is (= 304 (:status (listing etag))))
+        (record-time! handler task1-id other-user (t/date-time 2011 8 8 15 00 00) (t/date-time 2011 8 8 16 00 00))
+        (is (= 304 (:status (listing etag))) "Another user's time doesn't change the listing")
+        (record-time! handler task1-id user (t/date-time 2011 8 8 15 00 00) (t/date-time 2011 8 8 16 00 00))
+        (let [changed (listing etag)]
+          (is (= 200 (:status changed)))
+          (is (not= etag (get-in changed [:headers "ETag"]))))))))
+
+(deftest writes-answer-with-the-time-sheet-when-asked
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          fmt (f/formatters :date-time)
+          sheet {:timesheet_start (f/unparse fmt (t/date-time 2011 8 8))
+                 :timesheet_end (f/unparse fmt (t/date-time 2011 8 9))
+                 :recent_hours 0}
+          times #(->> % json-body (mapcat :times) (map (juxt :start_time :end_time)))]
+      (empty-table! system :task_time)
+      (let [recorded (-> (request :post (format "/time/%s" task1-id))
+                         (body (merge sheet {:user user
+                                             :start_time (t/date-time 2011 8 8 13 00 00)
+                                             :end_time (t/date-time 2011 8 8 15 00 00)}))
+                         handler)]
+        (is (ok? recorded))
+        (is (= [["2011-08-08T13:00:00.000Z" "2011-08-08T15:00:00.000Z"]] (times recorded))))
+      (let [idled (-> (request :delete "/time"
+                               (merge sheet {:user user
+                                             :start_time "2011-08-08T14:00:00.000Z"
+                                             :end_time "2011-08-08T15:00:00.000Z"}))
+                      handler)]
+        (is (ok? idled))
+        (is (= [["2011-08-08T13:00:00.000Z" "2011-08-08T14:00:00.000Z"]] (times idled))))
+      (is (= 201 (:status (record-time-req! handler task1-id user (t/date-time 2011 8 8 16 00 00) (t/date-time 2011 8 8 17 00 00))))
+          "Writes that don't ask answer as before"))))
+
+(deftest time-events-stream-recorded-time
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          _ (empty-table! system :task_time)
+          response (handler (request :get "/time/events" {:user user}))
+          in (java.io.PipedInputStream.)
+          out (java.io.PipedOutputStream. in)
+          _ (future ((:body response) out))
+          reader (io/reader in)]
+      (is (ok? response))
+      (is (re-find #"text/event-stream" (get-in response [:headers "Content-Type"])))
+      (is (= ": connected" (.readLine reader)))
+      (is (deref (get-in system [:notifications :listening]) 10000 false)
+          "The listener LISTENs before the change commits")
+      (record-time! handler task1-id other-user (t/date-time 2011 8 8 12 00 00) (t/date-time 2011 8 8 13 00 00))
+      (record-time! handler task1-id user (t/date-time 2011 8 8 13 00 00) (t/date-time 2011 8 8 14 00 00))
+      (let [data (deref (future (->> (repeatedly #(.readLine reader))
+                                     (some #(some->> % (re-find #"^data: (.*)$") second))))
+                        10000 nil)
+            change (some-> data (json/read-str :key-fn keyword))]
+        (is (= "added" (:op change)) "Only the user's own time is streamed")
+        (is (= task1-id (str (:task_id change))))
+        (is (= (t/date-time 2011 8 8 13 00 00) (tc/from-string (:start_time change)))))
+      (.close reader))
+    (is (= 404 (:status (handler (request :get "/time/events" {:user non-user})))))))
+
+(deftest time-on-tasks-with-long-descriptions-can-be-recorded
+  (with-system
+    (let [description (apply str (repeat 9000 "x"))
+          task-id (-> (create-task! handler (assoc task-info-1 :description description))
+                      get-location task-url-to-id)]
+      (empty-table! system :task_time)
+      (is (= 201 (:status (record-time-req! handler task-id user (t/date-time 2011 8 8 13 00 00) (t/date-time 2011 8 8 14 00 00)))))
+      (is (= description (:description (first (list-time handler user (t/local-date 2011 8 8)))))))))
+
 (deftest start_time_before_end_time
   (with-system
     (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)]
@@ -269,6 +383,50 @@
                   (t/date-time 2011 8 8 13 00 00) (t/date-time 2011 8 8 14 00 00))]
         (is (= 400 (:status resp)))))))
 
+(deftest new-users-can-record-time-and-deactivated-users-cannot
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          post-response (post-response-fn "/users" handler)
+          location (get-location-header post-response)
+          new-user (:name (json-body (handler (request :get location))))]
+      (is (= 201 (:status (record-time-req! handler task1-id new-user (t/date-time 2011 8 8 13 00 00) (t/date-time 2011 8 8 14 00 00)))))
+      (-> (request :put location)
+          (content-type "application/json")
+          (body (json/write-str {:name new-user :active false}))
+          (handler))
+      (is (= 400 (:status (record-time-req! handler task1-id new-user (t/date-time 2011 8 8 14 00 00) (t/date-time 2011 8 8 15 00 00))))))))
+
+(deftest unknown-users-reload-the-users-list-at-most-once-per-interval
+  (with-system
+    ;; Without notifications, so that only misses reload the list.
+    (let [cache (component/start (assoc (reference-data/instance) :db (:db system)))
+          conn (-> system :db :conn)
+          added (random-string)]
+      (is (nil? (reference-data/user cache (random-string))))
+      ((:create sql.user/queries) {:name added} {:connection conn})
+      (is (nil? (reference-data/user cache added))
+          "A miss soon after another doesn't reload the list")
+      (reset! (:miss-reloaded cache) nil)
+      (is (= added (:name (reference-data/user cache added)))
+          "Once the interval has passed, a miss finds users added since"))))
+
+(deftest reference-data-follows-writes-made-in-the-database
+  (with-system
+    (let [cache (:reference-data system)
+          conn (-> system :db :conn)
+          projects #(get-in (reference-data/lookup cache "projects" sql.project/queries) [:all :items])
+          id (:id ((:create sql.project/queries) {:name (random-string)} {:connection conn}))
+          renamed (random-string)]
+      (is (deref (get-in system [:notifications :listening]) 10000 false))
+      (projects)
+      (j/execute! conn ["UPDATE projects SET name = ? WHERE id = ?" renamed id])
+      (is (loop [tries 100]
+            (cond
+              (some #(= renamed (:name %)) (projects)) true
+              (zero? tries) false
+              :else (do (Thread/sleep 100) (recur (dec tries)))))
+          "The cached list is dropped once the trigger's notification arrives"))))
+
 (deftest does-not-modify-non-conflicting-records
   (with-system
     (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
@@ -529,6 +687,19 @@
                  :end_time (t/date-time 2011 8 2 00 0 0)}]
                (:times task-2)))))))
 
+(deftest retrieve-should-ignore-zero-length-time
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          conn (-> system :db :conn)
+          user-id (-> (j/query conn ["SELECT id FROM users WHERE name = ?" user]) first :id)]
+      (empty-table! system :task_time)
+      (j/execute! conn ["INSERT INTO task_time (task_id, user_id, start_time, end_time) VALUES (?, ?, ?, ?)"
+                        (Integer/parseInt task1-id) user-id
+                        (tc/to-timestamp (t/date-time 2011 8 6 12 00 00))
+                        (tc/to-timestamp (t/date-time 2011 8 6 12 00 00))])
+      (is (empty? (mapcat :times (list-time handler user (t/local-date 2011 8 8) (t/hours 24))))
+          "An empty period lies within every range, but is not time spent in it"))))
+
 (deftest retrieve-should-include-empty-tasks-with-recent-time-when-they-are-within-recent_hours-of-the-start-time
   (with-system
     (record-some-time handler)
@@ -550,3 +721,118 @@
                (:times task-1)))
         (is task-2)
         (is (empty? (:times task-2)))))))
+
+(deftest trims-and-removes-every-conflicting-record-across-a-fragmented-day
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          task2-id (-> (create-task! handler task-info-2) get-location task-url-to-id)
+          task3-id (-> (create-task! handler task-info-3) get-location task-url-to-id)]
+      (empty-table! system :task_time)
+      (doseq [hour (range 9 17)]
+        (record-time! handler task1-id user (t/date-time 2011 8 8 hour 00 00) (t/date-time 2011 8 8 hour 30 00))
+        (record-time! handler task2-id user (t/date-time 2011 8 8 hour 30 00) (t/date-time 2011 8 8 (inc hour) 00 00)))
+      (record-time! handler task3-id user (t/date-time 2011 8 8 9 15 00) (t/date-time 2011 8 8 16 45 00))
+      (let [tasks (list-time handler user (t/local-date 2011 8 8))
+            task-1 (first (filter #(= (:description %) (:description task-info-1)) tasks))
+            task-2 (first (filter #(= (:description %) (:description task-info-2)) tasks))
+            task-3 (first (filter #(= (:description %) (:description task-info-3)) tasks))]
+        (is (= [{:start_time (t/date-time 2011 8 8 9 0 0)
+                 :end_time (t/date-time 2011 8 8 9 15 0)}]
+               (:times task-1)))
+        (is (= [{:start_time (t/date-time 2011 8 8 16 45 0)
+                 :end_time (t/date-time 2011 8 8 17 0 0)}]
+               (:times task-2)))
+        (is (= [{:start_time (t/date-time 2011 8 8 9 15 0)
+                 :end_time (t/date-time 2011 8 8 16 45 0)}]
+               (:times task-3)))))))
+
+(deftest daily-rollup-follows-recorded-trimmed-and-deleted-time
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          task2-id (-> (create-task! handler task-info-2) get-location task-url-to-id)
+          daily #(j/query (-> system :db :conn)
+                          ["SELECT task_id, minutes :: float AS minutes FROM task_time_daily WHERE day = '2011-08-08' ORDER BY task_id"])]
+      (empty-table! system :task_time)
+      (record-time! handler task1-id user (t/date-time 2011 8 8 9 00 00) (t/date-time 2011 8 8 12 00 00))
+      (record-time! handler task2-id user (t/date-time 2011 8 8 10 00 00) (t/date-time 2011 8 8 11 00 00))
+      (is (= #{{:task_id (Integer/parseInt task1-id) :minutes 120.0}
+               {:task_id (Integer/parseInt task2-id) :minutes 60.0}}
+             (set (daily))))
+      (delete-time! handler user (t/date-time 2011 8 8 9 00 00) (t/date-time 2011 8 8 11 00 00))
+      (is (= [{:task_id (Integer/parseInt task1-id) :minutes 60.0}] (daily)))
+      (is (empty? (rollup/discrepancies (:db system)))))))
+
+(deftest daily-rollup-cuts-days-in-utc-whatever-the-session-zone
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          conn (-> system :db :conn)
+          user-id (-> (j/query conn ["SELECT id FROM users WHERE name = ?" user]) first :id)]
+      (empty-table! system :task_time)
+      (j/with-db-transaction [trans conn]
+        (j/execute! trans ["SET LOCAL TimeZone = 'Pacific/Auckland'"])
+        (j/execute! trans ["INSERT INTO task_time (task_id, user_id, start_time, end_time) VALUES (?, ?, ?, ?)"
+                           (Integer/parseInt task1-id) user-id
+                           (tc/to-timestamp (t/date-time 2011 8 8 23 30 00))
+                           (tc/to-timestamp (t/date-time 2011 8 9 0 30 00))]))
+      (is (= [{:day "2011-08-08" :minutes 60.0}]
+             (j/query conn ["SELECT day :: text AS day, minutes :: float AS minutes FROM task_time_daily"]))
+          "An entry crossing midnight counts towards the UTC day it starts on")
+      (is (empty? (rollup/discrepancies (:db system)))))))
+
+(defn record-times-req! [handler user entries]
+  (-> (request :post "/time/batch")
+      (content-type "application/json")
+      (body (json/write-str {:user user
+                             :entries (for [[id start end] entries]
+                                        {:task_id id :start_time (str start) :end_time (str end)})}))
+      handler))
+
+(deftest batch-records-valid-entries-and-reports-invalid-ones
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          task2-id (-> (create-task! handler task-info-2) get-location task-url-to-id)]
+      (empty-table! system :task_time)
+      (let [resp (record-times-req! handler user
+                                    [[task1-id (t/date-time 2011 8 8 12 00 00) (t/date-time 2011 8 8 14 00 00)]
+                                     [task2-id (t/date-time 2011 8 8 15 00 00) (t/date-time 2011 8 8 14 00 00)]
+                                     [task2-id (t/date-time 2011 8 8 13 00 00) (t/date-time 2011 8 8 15 00 00)]])]
+        (is (ok? resp))
+        (is (= ["recorded" "invalid" "recorded"] (map :status (:results (json-body resp))))))
+      (let [tasks (list-time handler user (t/local-date 2011 8 8))
+            task-1 (first (filter #(= (:description %) (:description task-info-1)) tasks))
+            task-2 (first (filter #(= (:description %) (:description task-info-2)) tasks))]
+        (is (= [{:start_time (t/date-time 2011 8 8 12 0 0)
+                 :end_time (t/date-time 2011 8 8 13 0 0)}]
+               (:times task-1)))
+        (is (= [{:start_time (t/date-time 2011 8 8 13 0 0)
+                 :end_time (t/date-time 2011 8 8 15 0 0)}]
+               (:times task-2)))))))
+
+(deftest batch-reports-unknown-tasks-and-records-the-rest
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)]
+      (empty-table! system :task_time)
+      (let [resp (record-times-req! handler user
+                                    [[task1-id (t/date-time 2011 8 8 12 00 00) (t/date-time 2011 8 8 13 00 00)]
+                                     ["999999999" (t/date-time 2011 8 8 13 00 00) (t/date-time 2011 8 8 14 00 00)]
+                                     ["99999999999" (t/date-time 2011 8 8 14 00 00) (t/date-time 2011 8 8 15 00 00)]])]
+        (is (ok? resp))
+        (is (= ["recorded" "invalid" "invalid"] (map :status (:results (json-body resp))))))
+      (is (= [{:start_time (t/date-time 2011 8 8 12 0 0)
+               :end_time (t/date-time 2011 8 8 13 0 0)}]
+             (mapcat :times (list-time handler user (t/local-date 2011 8 8))))))))
+
+(deftest batch-refuses-too-many-entries
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          start (t/date-time 2011 8 8)
+          entries (for [i (range (inc max-batch-entries))]
+                    [task1-id (t/plus start (t/minutes i)) (t/plus start (t/minutes (inc i)))])]
+      (is (= 413 (:status (record-times-req! handler user entries)))))))
+
+(deftest batch-rejects-unknown-users
+  (with-system
+    (let [task1-id (-> (create-task! handler task-info-1) get-location task-url-to-id)
+          resp (record-times-req! handler non-user
+                                  [[task1-id (t/date-time 2011 8 8 12 00 00) (t/date-time 2011 8 8 14 00 00)]])]
+      (is (= 400 (:status resp))))))
@@ -2,7 +2,15 @@
   (:require
    [clojure.test :refer [deftest testing is]]
    [clojure.data :refer [diff]]
+   [clojure.data.json :as json]
+   [clojure.java.jdbc :as j]
+   [clj-time.core :as t]
    [clj-time.coerce :as tc]
+   [clojure.string :as string]
+   [ring.mock.request :refer [request body header content-type]]
+   [time-tracker.db-notifications :as notifications]
+   [time-tracker.reference-data :as reference-data]
+   [time-tracker.test-systems :refer [with-system ok? json-body random-string create-task! record-time! get-location-header]]
    [time-tracker.timezilla-data :as td]))
 
 (deftest granularity-testing
@@ -21,16 +29,24 @@
           (format "Only in first part: %s\nOnly in second part %s" only-in-a only-in-b)))))
 
 (deftest minute-parser
-  (is (= 0.06 (:days (td/parsed-minutes
-                      {:minutes 10}
-                      {:minutes-per-day (* 60 8)
-                       :granularity 30
-                       :kind :PROPER}))))
-  (is (= 0.86 (:days (td/parsed-minutes
-                      {:minutes 315}
-                      {:minutes-per-day (* 60 7)
-                       :granularity 60
-                       :kind :UP})))))
+  (let [row (td/parsed-minutes
+             {:minutes 15.0 :raw_minutes 10.0 :tracker_url "http://foo/%d" :bug "1"}
+             {:tickets {["http://foo/%d" "1"] {:link "foo"}}})]
+    (is (= 10.0 (:raw-minutes row)))
+    (is (= {:link "foo"} (:ticket row)))
+    (is (not (contains? row :raw_minutes)))))
+
+(deftest granulate-in-sql-matches-granulator
+  (with-system
+    (doseq [minutes [0 5 10 11 14 15 16 29 30 45 315]
+            granularity [0 10 15 60]
+            kind [:PROPER :UP]]
+      (is (== (td/granulator minutes granularity kind)
+              (-> (j/query (-> system :db :conn)
+                           ["SELECT granulate(?, ?, ?) :: float AS minutes" minutes granularity (name kind)])
+                  first
+                  :minutes))
+          (pr-str [minutes granularity kind])))))
 
 (deftest date-from
   (let [today (tc/from-string "2016-07-10")]
@@ -52,7 +68,7 @@
 
 (deftest ticket-details
   (with-redefs [clj-http.client/get
-                (fn [url]
+                (fn [url & _]
                   (case url
                     "http://foo/1" {:body "{}"}
                     "http://foo/1234" {:body "{\"html_url\": \"foo\"}"}
@@ -60,3 +76,201 @@
     (diffeq {:link "" :title "" :state ""} (td/ticket-details "http://foo/%d" 1))
     (diffeq {:link "" :title "" :state ""} (td/ticket-details "http://foo/%d" -1))
     (diffeq {:link "foo" :title "" :state ""} (td/ticket-details "http://foo/%d" 1234))))
+
+(defn- slurp-body [response]
+  (update response :body #(if (string? %) % (slurp %))))
+
+(defn- record-report-time! [handler]
+  (let [task-url (get-location-header (create-task! handler {:project_id 1 :activity_id 1 :bug "1" :description "streamed"}))]
+    (doseq [hour [9 11 14]]
+      (record-time! handler task-url "paulj" (t/date-time 2016 7 5 hour) (t/date-time 2016 7 5 (inc hour))))))
+
+(def report-params
+  {:report-query "BY_TIME" :date-from "ALL" :date-to "ALL"
+   :time-granularity-mins "15" :hours-per-day "7"
+   :rounding-type "PROPER" :limit "-1" :query-id "q1"})
+
+(deftest aggregate-reports-round-totals-or-entries
+  (with-system
+    (record-report-time! handler)
+    (let [report (fn [extra]
+                   (-> (request :get "/timezilla-result"
+                                (merge report-params {:report-query "BY_USER" :time-granularity-mins "120"} extra))
+                       handler
+                       json-body
+                       :results
+                       first))]
+      (testing "the three hours are rounded as a whole"
+        (let [row (report {})]
+          (is (== 180 (:raw-minutes row)))
+          (is (== 240 (:minutes row)))
+          (is (== 4 (:hours row)))
+          (is (== 0.57 (:days row)))))
+      (testing "each hour is rounded up to two"
+        (let [row (report {:rounding-scope "ENTRY"})]
+          (is (== 180 (:raw-minutes row)))
+          (is (== 360 (:minutes row)))
+          (is (== 6 (:hours row)))
+          (is (== 0.86 (:days row))))))))
+
+(deftest reports-page-by-cursor
+  (with-system
+    (record-report-time! handler)
+    (doseq [report-query ["BY_TIME" "BY_TASK"]
+            stream [nil "true"]]
+      (testing (str report-query " " stream)
+        (let [page (fn [after]
+                     (-> (request :get "/timezilla-result"
+                                  (cond-> (assoc report-params :report-query report-query :limit "2")
+                                    stream (assoc :stream stream)
+                                    after (assoc :after after)))
+                         handler
+                         slurp-body
+                         json-body))
+              pages (->> (page nil)
+                         (iterate #(when-let [cursor (:next-cursor %)] (page cursor)))
+                         (take-while some?))
+              rows (mapcat :results pages)]
+          (if (= "BY_TIME" report-query)
+            (do
+              (is (= [2 1] (map (comp count :results) pages)))
+              (is (= 3 (count (set (map :id rows)))))
+              (is (= (sort (map :start_time rows)) (map :start_time rows))))
+            (is (= [1] (map (comp count :results) pages)))))))))
+
+(deftest streamed-report-matches-the-buffered-one
+  (with-system
+    (record-report-time! handler)
+    (let [report (fn [extra]
+                   (-> (request :get "/timezilla-result" (merge report-params extra))
+                       handler
+                       slurp-body))
+          buffered (report {})
+          streamed (report {:stream "true"})]
+      (is (ok? buffered))
+      (is (ok? streamed))
+      (is (= "q1" (:query-id (json-body streamed))))
+      (is (= 3 (count (:results (json-body streamed)))))
+      (is (= (set (:results (json-body buffered)))
+             (set (:results (json-body streamed))))))))
+
+(deftest streamed-reports-look-each-ticket-up-once
+  (with-system
+    (record-report-time! handler)
+    (let [asked (atom [])
+          ticket-key (juxt :tracker_url :bug)
+          lookup (fn [rows]
+                   (swap! asked into (map ticket-key rows))
+                   (into {} (for [row rows] [(ticket-key row) td/no-ticket])))
+          rows (atom [])]
+      (with-redefs [td/stream-fetch-size 1]
+        (td/stream-query (:db system) lookup (td/report-params report-params) #(swap! rows conj %)))
+      (is (= 3 (count @rows)))
+      (is (= 1 (count @asked))))))
+
+(deftest csv-export-streams-the-chosen-columns
+  (with-system
+    (record-report-time! handler)
+    (let [csv-request (request :get "/timezilla-result.csv"
+                               (assoc report-params
+                                      "report-heading[0]" "user"
+                                      "report-heading[1]" "hours"))]
+      (testing "plain"
+        (let [response (handler csv-request)
+              lines (-> response :body slurp string/split-lines)]
+          (is (ok? response))
+          (is (re-find #"text/csv" (get-in response [:headers "Content-Type"])))
+          (is (= "\"User\",\"Duration (hours)\"" (first lines)))
+          (is (= 3 (count (rest lines))))
+          (is (every? #{"\"paulj\",\"1\""} (rest lines)))))
+      (testing "gzipped"
+        (let [response (handler (header csv-request "Accept-Encoding" "gzip, deflate"))]
+          (is (= "gzip" (get-in response [:headers "Content-Encoding"])))
+          (is (= 4 (-> response :body (java.util.zip.GZIPInputStream.) slurp string/split-lines count))))))))
+
+(defn- sync-notifications!
+  "Waits for the notifications of the writes so far to reach the report
+  cache, so that they don't drop a report the test expects to be cached."
+  [system]
+  (is (notifications/sync! (:notifications system) 10000)))
+
+(deftest repeated-reports-are-cached-until-time-is-written
+  (with-system
+    (record-report-time! handler)
+    (sync-notifications! system)
+    (let [report #(-> (request :get "/timezilla-result" (assoc report-params :stream "true"))
+                      handler
+                      slurp-body
+                      json-body
+                      :results)
+          metrics-text #(:body (handler (request :get "/metrics")))]
+      (is (= 3 (count (report))))
+      (is (= 3 (count (report))))
+      (is (re-find #"timezilla_cache_requests_total\{result=\"hit\"\} 1" (metrics-text)))
+      (let [task-url (get-location-header (create-task! handler {:project_id 1 :activity_id 1 :bug "1" :description "streamed"}))]
+        (record-time! handler task-url "paulj" (t/date-time 2016 7 6 9) (t/date-time 2016 7 6 10)))
+      (is (= 4 (count (report))))
+      (is (re-find #"timezilla_cache_requests_total\{result=\"miss\"\} 2" (metrics-text))))))
+
+(deftest cached-reports-drop-time-written-elsewhere
+  (with-system
+    (record-report-time! handler)
+    (sync-notifications! system)
+    (let [report #(-> (request :get "/timezilla-result" (assoc report-params :stream "true"))
+                      handler
+                      slurp-body
+                      json-body
+                      :results)]
+      (is (= 3 (count (report))))
+      (j/execute! (-> system :db :conn)
+                  [(str "INSERT INTO task_time (user_id, task_id, start_time, end_time) "
+                        "SELECT user_id, task_id, start_time + interval '1 day', end_time + interval '1 day' "
+                        "FROM task_time ORDER BY start_time LIMIT 1")])
+      (sync-notifications! system)
+      (is (= 4 (count (report)))
+          "The cached report is dropped once the trigger's notification arrives"))))
+
+(deftest cached-reports-outlive-changes-outside-them
+  (with-system
+    (let [json-request (fn [method uri params]
+                         (-> (request method uri)
+                             (content-type "application/json")
+                             (body (json/write-str params))
+                             handler))
+          project-url (get-in (json-request :post "/projects" {:name (random-string)})
+                              [:headers "Location"])
+          project-id (Integer/parseInt (re-find #"\d+$" project-url))
+          task-url (get-location-header (create-task! handler {:project_id project-id :activity_id 1 :bug "1" :description "cached"}))
+          record! #(record-time! handler task-url % (t/date-time 2016 7 5 9) (t/date-time 2016 7 5 10))
+          user-id (:id (reference-data/user (:reference-data system) "paulj"))
+          report #(-> (request :get "/timezilla-result"
+                               (assoc report-params :stream "true" "user[0]" (str user-id)))
+                      handler
+                      slurp-body
+                      json-body
+                      :results)
+          misses #(->> (:body (handler (request :get "/metrics")))
+                       (re-find #"timezilla_cache_requests_total\{result=\"miss\"\} (\d+)")
+                       second)]
+      (record! "paulj")
+      (sync-notifications! system)
+      (is (= 1 (count (report))))
+      (testing "time written by another user"
+        (record! "BenJ")
+        (sync-notifications! system)
+        (is (= 1 (count (report))))
+        (is (= "1" (misses))))
+      (testing "renaming a project"
+        (json-request :put project-url {:name (random-string) :active true})
+        (sync-notifications! system)
+        (is (= 1 (count (report))))
+        (is (= "2" (misses)))))))
+
+(deftest bad-report-params-are-refused-before-streaming
+  (with-system
+    (doseq [[uri extra] [["/timezilla-result" {:stream "true" :limit "lots"}]
+                         ["/timezilla-result.csv" {:limit "lots"}]
+                         ["/timezilla-result" {:stream "true" :report-query "BY_WHIM"}]
+                         ["/timezilla-result" {"user[0]" "#=(java.lang.System/exit 0)"}]]]
+      (testing (str uri " " extra)
+        (is (= 400 (:status (handler (request :get uri (merge report-params extra))))))))))
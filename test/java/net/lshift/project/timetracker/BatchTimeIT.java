@@ -0,0 +1,58 @@
+package net.lshift.project.timetracker;
+
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static net.lshift.project.timetracker.Constants.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.collection.IsIterableContainingInOrder.contains;
+
+public class BatchTimeIT
+{
+    private static final LocalDate BATCH_DATE = THE_DATE.minusDays(3);
+    private static final String NO_SUCH_TASK = "999999999";
+
+    private final ServerApi server = new ServerApi();
+
+    @Before
+    public void clearBatchDate()
+    {
+        server.setTimeIdle(A_USER, BATCH_DATE.toDateTimeAtStartOfDay(EUROPE_LONDON),
+            BATCH_DATE.plusDays(1).toDateTimeAtStartOfDay(EUROPE_LONDON));
+    }
+
+    private DateTime timeOn(LocalDate date, int hourOfDay, int minutes)
+    {
+        return date.toDateTime(new LocalTime(hourOfDay, minutes),
+            EUROPE_LONDON);
+    }
+
+    @Test
+    public void recordsEachKnownTaskAndReportsTheUnknownOne()
+    {
+        String task1_id = server.createTask(TASK1);
+        String task2_id = server.createTask(TASK2);
+
+        List<String> statuses = server.recordTimes(A_USER, Arrays.asList(
+            new TimeEntry(task1_id, timeOn(BATCH_DATE, 9, 0),
+                timeOn(BATCH_DATE, 11, 0)),
+            new TimeEntry(NO_SUCH_TASK, timeOn(BATCH_DATE, 11, 0),
+                timeOn(BATCH_DATE, 12, 0)),
+            new TimeEntry(task2_id, timeOn(BATCH_DATE, 12, 0),
+                timeOn(BATCH_DATE, 13, 0))));
+        assertThat(statuses, contains("recorded", "invalid", "recorded"));
+
+        TimeSheet sheet = server.fetchSheetFor(A_USER, BATCH_DATE);
+        assertThat(sheet.periodsFor(TASK1), contains(
+            new Interval(timeOn(BATCH_DATE, 9, 0), timeOn(BATCH_DATE, 11, 0))));
+        assertThat(sheet.periodsFor(TASK2), contains(
+            new Interval(timeOn(BATCH_DATE, 12, 0), timeOn(BATCH_DATE, 13, 0))));
+    }
+}
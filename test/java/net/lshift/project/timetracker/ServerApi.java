@@ -10,19 +10,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.joda.time.DateTime;
 import org.joda.time.Days;
 import org.joda.time.LocalDate;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.type.CollectionType;
 
@@ -95,6 +100,54 @@ class ServerApi
         }
     }
 
+    /**
+     * Records all the entries for the user in one request and returns the
+     * status the server gave each one, in order.
+     */
+    public List<String> recordTimes(String userName, List<TimeEntry> entries)
+    {
+        try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
+
+            List<Map<String, String>> body = new ArrayList<>();
+            for (TimeEntry entry : entries) {
+                Map<String, String> item = new HashMap<>();
+                item.put("task_id", entry.taskId);
+                item.put("start_time", TIME_FORMAT.print(entry.start));
+                item.put("end_time", TIME_FORMAT.print(entry.end));
+                body.add(item);
+            }
+            Map<String, Object> batch = new HashMap<>();
+            batch.put("user", userName);
+            batch.put("entries", body);
+
+            ObjectMapper mapper = new ObjectMapper();
+            HttpUriRequest request = RequestBuilder
+                            .post(TIME_URL + "/batch")
+                            .setEntity(new StringEntity(
+                                mapper.writeValueAsString(batch),
+                                ContentType.APPLICATION_JSON))
+                            .build();
+
+            CloseableHttpResponse response = httpclient.execute(request);
+            TimeSheetScreenIT.log.info("Req: {}", request);
+            TimeSheetScreenIT.log
+                            .info("Response: {}", response.getStatusLine());
+
+            assertThat(response.getStatusLine().getStatusCode(), equalTo(200));
+
+            List<String> statuses = new ArrayList<>();
+            JsonNode results = mapper
+                            .readTree(response.getEntity().getContent())
+                            .get("results");
+            for (JsonNode result : results) {
+                statuses.add(result.get("status").asText());
+            }
+            return statuses;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public String createTask(Task task)
     {
         try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
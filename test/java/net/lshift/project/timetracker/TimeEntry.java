@@ -0,0 +1,25 @@
+package net.lshift.project.timetracker;
+
+import com.google.common.base.MoreObjects;
+
+import org.joda.time.DateTime;
+
+public class TimeEntry
+{
+    final String taskId;
+    final DateTime start;
+    final DateTime end;
+
+    public TimeEntry(String taskId, DateTime start, DateTime end)
+    {
+        this.taskId = taskId;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String toString()
+    {
+        return MoreObjects.toStringHelper(this).add("taskId", taskId)
+                        .add("start", start).add("end", end).toString();
+    }
+}